@@ -0,0 +1,292 @@
+//---------------------------------------------------
+//
+// class Bbr
+//
+// model-based congestion control, after BBR (Cardwell et al., "BBR:
+// Congestion-Based Congestion Control", 2016).  rather than reading
+// every loss as congestion and halving, it keeps a model of the path:
+// the bottleneck bandwidth (the highest delivery rate seen over the
+// last BW_ROUNDS round trips, from DeliveryRate) and the propagation
+// delay (the lowest round trip seen over the last MIN_RTT_WINDOW).
+// it paces at the bandwidth, and keeps about two bandwidth-delay
+// products in flight.  random loss leaves the model alone, so a lossy
+// link keeps its rate.
+//
+// it goes through BBR's modes:
+//
+//   STARTUP    doubles the rate each round trip until the bandwidth
+//              stops growing by a quarter for three round trips
+//   DRAIN      slows down until the queue STARTUP built is gone
+//   PROBE_BW   cycles the pacing gain: 1.25 for a round trip to look
+//              for more bandwidth, 0.75 to drain what that queued,
+//              then 1 for six
+//   PROBE_RTT  if no round trip has beaten the minimum for
+//              MIN_RTT_WINDOW, keeps only MIN_CWND segments in
+//              flight for PROBE_RTT_TIME, to measure it again
+//
+// a retransmission timeout leaves the model as it is; the segments
+// are sent again regardless of the window.
+//
+//---------------------------------------------------
+class Bbr {
+
+	enum Mode {
+		STARTUP, DRAIN, PROBE_BW, PROBE_RTT
+	}
+
+	//2/ln(2): the smallest gain that doubles the delivery rate each round trip
+	static final double HIGH_GAIN = 2.885;
+
+	static final double[] PROBE_BW_GAINS = { 1.25, 0.75, 1, 1, 1, 1, 1, 1 };
+
+	static final double CWND_GAIN = 2;
+
+	//Round trips the bandwidth filter covers
+	static final int BW_ROUNDS = 10;
+
+	//How long a minimum round trip stands without being seen again, in nanoseconds
+	static final long MIN_RTT_WINDOW = 10 * 1000000000L;
+
+	//How long PROBE_RTT keeps the flight small, in nanoseconds
+	static final long PROBE_RTT_TIME = 200 * 1000000L;
+
+	//Segments in flight: at the start, and at least
+	static final int INITIAL_CWND = 10;
+	static final int MIN_CWND = 4;
+
+	private final int mss;
+
+	private Mode mode = Mode.STARTUP;
+	private double pacingGain = HIGH_GAIN;
+	private double cwndGain = HIGH_GAIN;
+	private int cwnd;
+	private long pacingRate; //Bytes per second; 0 until there is a bandwidth to pace at
+
+	//Bandwidth filter: the highest rate seen in each of the last BW_ROUNDS rounds
+	private final long[] bwByRound = new long[BW_ROUNDS];
+	private final long[] bwRound = new long[BW_ROUNDS];
+	private long btlBw;
+
+	private long round; //Round trips counted so far
+	private long nextRoundDelivered; //A round ends when a segment sent after this much was delivered is acked
+	private boolean roundStart;
+
+	private long minRtt; //Nanoseconds, 0 until measured
+	private long minRttStamp;
+
+	private long fullBw; //STARTUP: the bandwidth the pipe is thought full at
+	private int fullBwRounds; //Rounds without growth past fullBw
+	private boolean filledPipe;
+
+	private int cycleIndex; //PROBE_BW: index into PROBE_BW_GAINS
+	private long cycleStamp;
+
+	private long probeRttDone; //PROBE_RTT: when it ends, once the flight is down; 0 before that
+
+	/**
+	 * @param mss
+	 *            the largest segment sent, in bytes
+	 */
+	Bbr(int mss) {
+		this.mss = mss;
+		cwnd = INITIAL_CWND * mss;
+	}
+
+	/**
+	 * Updates the model from one ACK, and the window and pacing rate from the
+	 * model.
+	 *
+	 * @param rs
+	 *            the ACK's delivery rate sample
+	 * @param delivered
+	 *            bytes delivered so far
+	 * @param inFlight
+	 *            bytes in flight after the ACK
+	 * @param now
+	 *            TCPClock nanoTime
+	 */
+	public void onAck(DeliveryRate.Sample rs, long delivered, int inFlight, long now) {
+		//Rounds: one ends when a segment sent after the previous end is acked
+		roundStart = false;
+		if (rs.priorDelivered >= nextRoundDelivered) {
+			nextRoundDelivered = delivered;
+			round++;
+			roundStart = true;
+		}
+
+		updateBandwidth(rs);
+		checkFullPipe(rs);
+		updateMinRtt(rs, now);
+
+		switch (mode) {
+		case STARTUP:
+			if (filledPipe)
+				enter(Mode.DRAIN, now);
+			break;
+		case DRAIN:
+			if (inFlight <= bdp(1))
+				enter(Mode.PROBE_BW, now);
+			break;
+		case PROBE_BW:
+			advanceCycle(inFlight, now);
+			break;
+		case PROBE_RTT:
+			if (probeRttDone == 0 && inFlight <= MIN_CWND * mss)
+				probeRttDone = now + PROBE_RTT_TIME;
+			else if (probeRttDone != 0 && now - probeRttDone >= 0) {
+				minRttStamp = now;
+				enter(filledPipe ? Mode.PROBE_BW : Mode.STARTUP, now);
+			}
+			break;
+		}
+
+		//Pacing: in STARTUP only ever faster, so one slow sample doesn't stall the growth
+		long rate = (long) (pacingGain * btlBw);
+		if (rate > 0 && (filledPipe || rate > pacingRate))
+			pacingRate = rate;
+
+		//Window: about CWND_GAIN bandwidth-delay products. While the pipe fills it grows with every ACK.
+		long target = bdp(cwndGain) + 3L * mss;
+		if (filledPipe)
+			cwnd = (int) Math.min(cwnd + rs.acked, target);
+		else if (cwnd < target || delivered < INITIAL_CWND * mss || btlBw == 0)
+			cwnd += rs.acked;
+		cwnd = Math.max(cwnd, MIN_CWND * mss);
+		if (mode == Mode.PROBE_RTT)
+			cwnd = Math.min(cwnd, MIN_CWND * mss);
+	}
+
+	/**
+	 * @return the most bytes to have in flight
+	 */
+	public int getCwnd() {
+		return cwnd;
+	}
+
+	/**
+	 * @return the rate to pace at, in bytes per second, or 0 if there is no
+	 *         bandwidth estimate yet
+	 */
+	public long getPacingRate() {
+		return pacingRate;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return the bottleneck bandwidth estimate, in bytes per second
+	 */
+	public long getBandwidth() {
+		return btlBw;
+	}
+
+	/**
+	 * @return the propagation delay estimate, in nanoseconds, or 0
+	 */
+	public long getMinRtt() {
+		return minRtt;
+	}
+
+	/**
+	 * @return the bandwidth-delay product times a gain, in bytes; the
+	 *         initial window until both are known
+	 */
+	private long bdp(double gain) {
+		if (btlBw == 0 || minRtt == 0)
+			return INITIAL_CWND * mss;
+		return (long) (gain * btlBw * minRtt / 1000000000L);
+	}
+
+	/**
+	 * Windowed max filter over rounds. App-limited samples only count if
+	 * they beat the estimate: they show at least that much bandwidth.
+	 */
+	private void updateBandwidth(DeliveryRate.Sample rs) {
+		if (rs.rate == 0 || (rs.appLimited && rs.rate < btlBw))
+			return;
+
+		int slot = (int) (round % BW_ROUNDS);
+		if (bwRound[slot] != round) {
+			bwRound[slot] = round;
+			bwByRound[slot] = 0;
+		}
+		bwByRound[slot] = Math.max(bwByRound[slot], rs.rate);
+
+		btlBw = 0;
+		for (int i = 0; i < BW_ROUNDS; i++)
+			if (round - bwRound[i] < BW_ROUNDS)
+				btlBw = Math.max(btlBw, bwByRound[i]);
+	}
+
+	private void checkFullPipe(DeliveryRate.Sample rs) {
+		if (filledPipe || !roundStart || rs.appLimited)
+			return;
+		if (btlBw >= fullBw * 5 / 4) {
+			fullBw = btlBw;
+			fullBwRounds = 0;
+		} else if (++fullBwRounds >= 3)
+			filledPipe = true;
+	}
+
+	private void updateMinRtt(DeliveryRate.Sample rs, long now) {
+		boolean expired = minRtt != 0 && now - minRttStamp > MIN_RTT_WINDOW;
+		if (rs.rtt > 0 && (minRtt == 0 || rs.rtt <= minRtt || expired)) {
+			minRtt = rs.rtt;
+			minRttStamp = now;
+		}
+		if (expired && mode != Mode.PROBE_RTT) {
+			enter(Mode.PROBE_RTT, now);
+			probeRttDone = 0;
+		}
+	}
+
+	/**
+	 * PROBE_BW: moves to the next gain after a round trip at this one. The
+	 * probing phase lasts until the extra flight is there; the draining one
+	 * ends early once the flight is down to one BDP.
+	 */
+	private void advanceCycle(int inFlight, long now) {
+		double gain = PROBE_BW_GAINS[cycleIndex];
+		boolean elapsed = now - cycleStamp > minRtt;
+		boolean next;
+		if (gain > 1) //A flight that can't grow (say, through loss) ends the probe after two round trips
+			next = (elapsed && inFlight >= bdp(gain)) || now - cycleStamp > 2 * minRtt;
+		else if (gain < 1)
+			next = elapsed || inFlight <= bdp(1);
+		else
+			next = elapsed;
+
+		if (next) {
+			cycleIndex = (cycleIndex + 1) % PROBE_BW_GAINS.length;
+			cycleStamp = now;
+			pacingGain = PROBE_BW_GAINS[cycleIndex];
+		}
+	}
+
+	private void enter(Mode m, long now) {
+		mode = m;
+		switch (m) {
+		case STARTUP:
+			pacingGain = HIGH_GAIN;
+			cwndGain = HIGH_GAIN;
+			break;
+		case DRAIN:
+			pacingGain = 1 / HIGH_GAIN;
+			cwndGain = HIGH_GAIN;
+			break;
+		case PROBE_BW:
+			//Starts past the probing and draining phases; the round count spreads connections over the cycle
+			cycleIndex = 2 + (int) (round % (PROBE_BW_GAINS.length - 2));
+			cycleStamp = now;
+			pacingGain = PROBE_BW_GAINS[cycleIndex];
+			cwndGain = CWND_GAIN;
+			break;
+		case PROBE_RTT:
+			pacingGain = 1;
+			cwndGain = 1;
+			break;
+		}
+	}
+}
@@ -0,0 +1,248 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+//---------------------------------------------------
+//
+// class Compression
+//
+// compression of a connection's byte stream, for links where the
+// packet rate, not the byte rate, is what limits throughput: the
+// more a packet's bytes carry, the more gets through.
+//
+// it is agreed on in the handshake.  a SYN asks for it with an empty
+// option of OPTION_KIND (an experimental kind, RFC 4727), and a
+// SYN+ACK with the same option agrees; a SYN+ACK without it leaves
+// the connection uncompressed.  a SYN that carries data (Fast Open)
+// doesn't ask, since that data goes out before the answer is known,
+// and neither does a SYN+ACK with a SYN cookie, which has no room to
+// remember the answer.
+//
+// once agreed on, each direction is one raw deflate stream.  what the
+// application writes is gathered into blocks of BLOCK_SIZE, and each
+// block is compressed, ending with a sync flush, into the send queue,
+// where it is cut into segments like any other data.  a block is
+// compressed once it is full, or sooner once everything sent before
+// it has been acked (as Nagle's algorithm would send a small
+// segment), so small writes made meanwhile are compressed together.
+// the other side decompresses as segments
+// arrive; the sync flush makes each block decodable as soon as it is
+// all there.  flow control and sequence numbers are all in compressed
+// bytes.
+//
+// a connection's Codec holds the zlib state of both directions and
+// the buffers it works in.  codecs are reused: a closed connection
+// gives its codec back, and the next connection to agree on
+// compression takes it, so that neither the buffers nor zlib's native
+// memory are allocated per connection.  one Compression (in the
+// Demultiplexer) keeps the codecs of its stack.
+//
+//---------------------------------------------------
+class Compression {
+
+	static final int OPTION_KIND = 253;
+
+	//Bytes of written data compressed at a time
+	static final int BLOCK_SIZE = 16 * 1024;
+
+	//The point is more bytes per packet, not the smallest stream: cheap compression of a block beats thorough
+	static final int LEVEL = Deflater.BEST_SPEED;
+
+	//Most codecs kept for reuse
+	private static final int MAX_IDLE = 64;
+
+	private final ArrayDeque<Codec> idle = new ArrayDeque<Codec>();
+
+	/**
+	 * Both directions of one connection's stream.
+	 */
+	static class Codec {
+		private final Compression owner;
+		private final Deflater deflater = new Deflater(LEVEL, true);
+		private final Inflater inflater = new Inflater(true);
+
+		//Sending: data written, gathered into a block, and the block compressed, until the send queue takes it
+		private final byte[] block = new byte[BLOCK_SIZE];
+		private int blockLength;
+		private boolean flushing; //The deflater has the block, and more of it to put out
+		private final ByteBuffer compressed = ByteBuffer.allocate(BLOCK_SIZE); //Between position and limit
+
+		//Receiving: compressed data taken from the receive queue, and what it decompressed to, until it is read
+		private final ByteBuffer input = ByteBuffer.allocate(BLOCK_SIZE);
+		private final ByteBuffer inflated = ByteBuffer.allocate(BLOCK_SIZE); //Between position and limit
+		private boolean corrupt;
+
+		Codec(Compression owner) {
+			this.owner = owner;
+			compressed.limit(0);
+			inflated.limit(0);
+		}
+
+		/**
+		 * @return how many bytes write() would take
+		 */
+		public int room() {
+			return flushing ? 0 : BLOCK_SIZE - blockLength;
+		}
+
+		/**
+		 * Takes as much of the buffer as the block has room for.
+		 *
+		 * @return the number of bytes taken
+		 */
+		public int write(ByteBuffer src) {
+			int n = Math.min(src.remaining(), room());
+			src.get(block, blockLength, n);
+			blockLength += n;
+			return n;
+		}
+
+		public int write(byte[] b, int off, int len) {
+			int n = Math.min(len, room());
+			System.arraycopy(b, off, block, blockLength, n);
+			blockLength += n;
+			return n;
+		}
+
+		/**
+		 * @return bytes written that aren't in the send queue yet, compressed
+		 *         or not
+		 */
+		public int buffered() {
+			return blockLength + compressed.remaining();
+		}
+
+		/**
+		 * Moves compressed data into the send queue, compressing the block
+		 * when it is full, for as long as the queue has room.
+		 *
+		 * @param idle
+		 *            true if the queue is empty, everything in it acked: a
+		 *            partial block is compressed too, rather than left to
+		 *            fill up
+		 */
+		public void compressTo(SegmentQueue q, boolean idle) {
+			while (true) {
+				if (compressed.hasRemaining()) {
+					q.write(compressed);
+					if (compressed.hasRemaining())
+						return;
+				}
+				if (!flushing && (blockLength == 0 || (blockLength < BLOCK_SIZE && !idle)))
+					return;
+
+				if (!flushing) {
+					deflater.setInput(block, 0, blockLength);
+					flushing = true;
+				}
+				//A sync flush that fills the buffer may have more to put out; one that doesn't is done with the block
+				int n = deflater.deflate(compressed.array(), 0, BLOCK_SIZE, Deflater.SYNC_FLUSH);
+				compressed.position(0).limit(n);
+				if (n < BLOCK_SIZE) {
+					flushing = false;
+					blockLength = 0;
+				}
+			}
+		}
+
+		/**
+		 * @return bytes decompressed and not yet read
+		 */
+		public int available() {
+			return inflated.remaining();
+		}
+
+		/**
+		 * @return true if what was received couldn't be decompressed
+		 */
+		public boolean isCorrupt() {
+			return corrupt;
+		}
+
+		/**
+		 * Decompresses data from the receive queue, until the queue is empty or
+		 * there is no room left for what it decompresses to.
+		 */
+		public void decompressFrom(SegmentQueue q) {
+			if (corrupt || (q.size() == 0 && inflater.needsInput()))
+				return;
+			inflated.compact();
+			try {
+				while (inflated.hasRemaining()) {
+					if (inflater.needsInput()) {
+						input.clear();
+						int k = q.read(input);
+						if (k == 0)
+							break;
+						inflater.setInput(input.array(), 0, k);
+					}
+					int n = inflater.inflate(inflated.array(), inflated.position(), inflated.remaining());
+					if (n == 0 && !inflater.needsInput())
+						break;
+					inflated.position(inflated.position() + n);
+				}
+			} catch (DataFormatException e) {
+				System.err.println("!!! CORRUPT COMPRESSED DATA: " + e.getMessage());
+				corrupt = true;
+			} finally {
+				inflated.flip();
+			}
+		}
+
+		/**
+		 * Removes decompressed bytes into the buffer, up to its remaining space.
+		 *
+		 * @return the number of bytes read
+		 */
+		public int read(ByteBuffer dst) {
+			int n = Math.min(dst.remaining(), inflated.remaining());
+			dst.put(inflated.array(), inflated.position(), n);
+			inflated.position(inflated.position() + n);
+			return n;
+		}
+
+		public int read(byte[] b, int off, int len) {
+			int n = Math.min(len, inflated.remaining());
+			inflated.get(b, off, n);
+			return n;
+		}
+
+		/**
+		 * Gives the codec back for another connection. It must not be used
+		 * after this.
+		 */
+		public void release() {
+			owner.release(this);
+		}
+
+		private void reset() {
+			deflater.reset();
+			inflater.reset();
+			blockLength = 0;
+			flushing = false;
+			compressed.limit(0);
+			inflated.limit(0);
+			corrupt = false;
+		}
+	}
+
+	/**
+	 * @return a codec for a connection that has agreed on compression
+	 */
+	public synchronized Codec newCodec() {
+		Codec c = idle.pollFirst();
+		return c != null ? c : new Codec(this);
+	}
+
+	private synchronized void release(Codec c) {
+		c.reset();
+		if (idle.size() < MAX_IDLE)
+			idle.addFirst(c);
+		else {
+			c.deflater.end();
+			c.inflater.end();
+		}
+	}
+}
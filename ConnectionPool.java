@@ -0,0 +1,385 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TimerTask;
+
+//---------------------------------------------------
+//
+// class ConnectionPool
+//
+// keeps established client connections for reuse, so that code making
+// one request after another to the same server doesn't pay a
+// handshake, and leave a TIME_WAIT entry, for each of them.
+//
+// acquire() hands out an idle connection to the same address and port
+// if there is a healthy one, or opens a new Socket on the pool's
+// Demultiplexer, whichever stack's SocketImplFactory the JVM has
+// installed.  release() gives it back once the caller has read its
+// whole response.
+//
+// a connection is healthy while it is ESTABLISHED and has nothing to
+// read: data the caller didn't read, or a FIN, means it can't be
+// reused.  idle connections are checked when they are handed out, and
+// every so often while they wait; those idle longer than the idle
+// timeout are closed then too.
+//
+// at most maxSize connections are open at once, in use or idle.  when
+// there are that many, acquire() closes the longest idle connection
+// to make room, or waits for one to be released.
+//
+//---------------------------------------------------
+class ConnectionPool {
+
+	/**
+	 * A Socket on a given SocketImpl rather than one from the JVM's factory.
+	 */
+	private static class PooledSocket extends Socket {
+		PooledSocket(StudentSocketImpl impl) throws SocketException {
+			super(impl);
+		}
+	}
+
+	/**
+	 * A connection waiting in the pool.
+	 */
+	private static class Idle {
+		final Socket socket;
+		final StudentSocketImpl impl;
+		final long since;
+
+		Idle(Socket socket, StudentSocketImpl impl, long since) {
+			this.socket = socket;
+			this.impl = impl;
+			this.since = since;
+		}
+	}
+
+	private final Demultiplexer D;
+	private final int maxSize;
+	private final long idleTimeout;
+
+	//Idle connections by remote address, the most recently released last
+	private final HashMap<InetSocketAddress, ArrayDeque<Idle>> idle = new HashMap<InetSocketAddress, ArrayDeque<Idle>>();
+	private final IdentityHashMap<Socket, StudentSocketImpl> inUse = new IdentityHashMap<Socket, StudentSocketImpl>();
+	private int idleCount;
+	private int opening; //Connections being opened by acquire(), counted against maxSize
+	private TCPClock.Timer sweepTimer; //Runs only while something is idle
+	private boolean closed;
+
+	private long openedCount;
+	private long reusedCount;
+	private long evictedCount;
+
+	/**
+	 * Creates a pool for sockets of the Demultiplexer started by TCPStart.
+	 *
+	 * @param maxSize
+	 *            most connections open at once, in use or idle
+	 * @param idleTimeout
+	 *            how long a connection may wait unused before it is closed, in
+	 *            milliseconds
+	 */
+	public ConnectionPool(int maxSize, long idleTimeout) {
+		this(TCPStart.getDemultiplexer(), maxSize, idleTimeout);
+	}
+
+	ConnectionPool(Demultiplexer D, int maxSize, long idleTimeout) {
+		if (maxSize <= 0 || idleTimeout <= 0)
+			throw new IllegalArgumentException("maxSize and idleTimeout must be positive");
+		this.D = D;
+		this.maxSize = maxSize;
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Gets a connection to the given address and port: a healthy idle one if
+	 * there is one, otherwise a new one. Waits if maxSize connections are in
+	 * use.
+	 *
+	 * @param address
+	 *            the IP address of the remote host.
+	 * @param port
+	 *            the port number.
+	 * @return a connected socket, to be given back with release() or discard()
+	 * @exception IOException
+	 *                if the connection can't be opened, or the pool is closed
+	 */
+	public Socket acquire(InetAddress address, int port) throws IOException {
+		InetSocketAddress key = new InetSocketAddress(address, port);
+		List<Idle> toClose = new ArrayList<Idle>();
+		try {
+			synchronized (this) {
+				while (true) {
+					if (closed)
+						throw new IOException("pool is closed");
+
+					Idle c = takeIdle(key, toClose);
+					if (c != null) {
+						reusedCount++;
+						inUse.put(c.socket, c.impl);
+						return c.socket;
+					}
+
+					if (openCount() >= maxSize) {
+						Idle oldest = takeOldestIdle();
+						if (oldest != null) {
+							evictedCount++;
+							toClose.add(oldest);
+						}
+					}
+					if (openCount() < maxSize)
+						break;
+
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+				}
+				opening++;
+			}
+		} finally {
+			closeAll(toClose);
+		}
+
+		//Connects outside the pool's monitor: the handshake takes a round trip
+		StudentSocketImpl impl = new StudentSocketImpl(D);
+		Socket s = null;
+		try {
+			Socket socket = new PooledSocket(impl);
+			socket.connect(new InetSocketAddress(address, port));
+			s = socket;
+		} finally {
+			synchronized (this) {
+				opening--;
+				if (s != null) {
+					openedCount++;
+					inUse.put(s, impl);
+				}
+				notifyAll();
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Gives a connection back for reuse. It is closed instead if it isn't
+	 * healthy, for instance if part of the response is still unread.
+	 *
+	 * @param s
+	 *            a socket from acquire()
+	 */
+	public void release(Socket s) {
+		StudentSocketImpl impl;
+		synchronized (this) {
+			if (!inUse.containsKey(s))
+				throw new IllegalArgumentException("socket is not from this pool");
+			impl = inUse.remove(s);
+			notifyAll();
+
+			if (!closed && isHealthy(impl)) {
+				InetSocketAddress key = new InetSocketAddress(s.getInetAddress(), s.getPort());
+				ArrayDeque<Idle> q = idle.get(key);
+				if (q == null) {
+					q = new ArrayDeque<Idle>();
+					idle.put(key, q);
+				}
+				q.addLast(new Idle(s, impl, D.getClock().currentTimeMillis()));
+				idleCount++;
+
+				if (sweepTimer == null)
+					scheduleSweep(idleTimeout);
+				return;
+			}
+		}
+		close(impl);
+	}
+
+	/**
+	 * Closes a connection instead of giving it back, after an error on it.
+	 *
+	 * @param s
+	 *            a socket from acquire()
+	 */
+	public void discard(Socket s) {
+		StudentSocketImpl impl;
+		synchronized (this) {
+			if (!inUse.containsKey(s))
+				throw new IllegalArgumentException("socket is not from this pool");
+			impl = inUse.remove(s);
+			notifyAll();
+		}
+		close(impl);
+	}
+
+	/**
+	 * Closes every idle connection. Connections in use are closed when they
+	 * are released, and acquire() fails from now on.
+	 */
+	public void close() {
+		List<Idle> toClose = new ArrayList<Idle>();
+		synchronized (this) {
+			closed = true;
+			for (ArrayDeque<Idle> q : idle.values())
+				toClose.addAll(q);
+			idle.clear();
+			idleCount = 0;
+			if (sweepTimer != null) {
+				sweepTimer.cancel();
+				sweepTimer = null;
+			}
+			notifyAll();
+		}
+		closeAll(toClose);
+	}
+
+	public synchronized int getIdleCount() {
+		return idleCount;
+	}
+
+	public synchronized int getInUseCount() {
+		return inUse.size();
+	}
+
+	/**
+	 * @return how many connections acquire() has opened
+	 */
+	public synchronized long getOpenedCount() {
+		return openedCount;
+	}
+
+	/**
+	 * @return how many times acquire() handed out an idle connection
+	 */
+	public synchronized long getReusedCount() {
+		return reusedCount;
+	}
+
+	/**
+	 * @return how many idle connections were closed to stay under maxSize or
+	 *         the idle timeout, or because they had stopped being healthy
+	 */
+	public synchronized long getEvictedCount() {
+		return evictedCount;
+	}
+
+	private int openCount() {
+		return inUse.size() + idleCount + opening;
+	}
+
+	private static boolean isHealthy(StudentSocketImpl impl) {
+		return impl != null && impl.getState() == StudentSocketImpl.State.ESTABLISHED && !impl.isReadable();
+	}
+
+	/**
+	 * Takes the most recently released healthy connection to the address.
+	 * Unhealthy ones found on the way are added to toClose.
+	 */
+	private Idle takeIdle(InetSocketAddress key, List<Idle> toClose) {
+		ArrayDeque<Idle> q = idle.get(key);
+		if (q == null)
+			return null;
+
+		Idle found = null;
+		while (found == null && !q.isEmpty()) {
+			Idle c = q.pollLast();
+			idleCount--;
+			if (isHealthy(c.impl))
+				found = c;
+			else {
+				evictedCount++;
+				toClose.add(c);
+			}
+		}
+		if (q.isEmpty())
+			idle.remove(key);
+		return found;
+	}
+
+	/**
+	 * Takes the connection that has been idle the longest, of any address.
+	 */
+	private Idle takeOldestIdle() {
+		ArrayDeque<Idle> oldest = null;
+		for (ArrayDeque<Idle> q : idle.values())
+			if (oldest == null || q.peekFirst().since < oldest.peekFirst().since)
+				oldest = q;
+		if (oldest == null)
+			return null;
+
+		Idle c = oldest.pollFirst();
+		idleCount--;
+		if (oldest.isEmpty())
+			idle.remove(new InetSocketAddress(c.socket.getInetAddress(), c.socket.getPort()));
+		return c;
+	}
+
+	private void scheduleSweep(long delay) {
+		if (sweepTimer == null)
+			sweepTimer = D.getClock().newTimer();
+		sweepTimer.schedule(new TimerTask() {
+			public void run() {
+				sweep();
+			}
+		}, delay);
+	}
+
+	/**
+	 * Closes the idle connections that have timed out or stopped being
+	 * healthy, and runs again when the next one times out.
+	 */
+	private void sweep() {
+		List<Idle> toClose = new ArrayList<Idle>();
+		synchronized (this) {
+			long now = D.getClock().currentTimeMillis();
+			long next = Long.MAX_VALUE;
+			for (ArrayDeque<Idle> q : idle.values()) {
+				for (Iterator<Idle> it = q.iterator(); it.hasNext();) {
+					Idle c = it.next();
+					if (now - c.since >= idleTimeout || !isHealthy(c.impl)) {
+						it.remove();
+						idleCount--;
+						evictedCount++;
+						toClose.add(c);
+					} else
+						next = Math.min(next, c.since + idleTimeout);
+				}
+			}
+			idle.values().removeIf(ArrayDeque::isEmpty);
+			notifyAll();
+
+			if (!closed && sweepTimer != null) {
+				if (idleCount > 0)
+					scheduleSweep(Math.min(next - now, idleTimeout));
+				else {
+					//Nothing left to watch: let the timer's thread go until something is idle again
+					sweepTimer.cancel();
+					sweepTimer = null;
+				}
+			}
+		}
+		closeAll(toClose);
+	}
+
+	private static void closeAll(List<Idle> connections) {
+		for (Idle c : connections)
+			close(c.impl);
+	}
+
+	/**
+	 * Starts closing a connection without waiting for the handshake to finish.
+	 */
+	private static void close(StudentSocketImpl impl) {
+		if (impl != null)
+			impl.startClose();
+	}
+}
@@ -0,0 +1,142 @@
+//---------------------------------------------------
+//
+// class DeliveryRate
+//
+// estimates the rate at which a connection's data is delivered, one
+// sample per ACK, for model-based congestion control (see Bbr).  after
+// draft-cheng-iccrg-delivery-rate-estimation.
+//
+// every segment's RetransmissionQueue entry remembers, when it is
+// sent, how much the connection had delivered (had acked) by then,
+// and when.  when the ACK for it
+// arrives, the bytes delivered since, over the time they took, is a
+// delivery rate.  the time is the longer of the send interval and the
+// ACK interval for those bytes, so that neither a burst of sends nor
+// a compressed burst of ACKs can make the rate look higher than the
+// path allows.
+//
+// a sample taken while the application had nothing more to send only
+// shows what the application asked for, not what the path can do; it
+// is flagged as app-limited.
+//
+//---------------------------------------------------
+class DeliveryRate {
+
+	/**
+	 * What one ACK says about the path.
+	 */
+	static class Sample {
+		long rate; //Bytes per second, or 0 if the ACK gave no sample
+		long delivered; //Bytes delivered over the interval
+		long interval; //Nanoseconds
+		long priorDelivered; //What the connection had delivered when the newest acked segment was sent
+		long rtt; //Round trip of the newest acked segment, in nanoseconds; -1 if it was retransmitted
+		int acked; //Bytes newly acked
+		boolean appLimited;
+	}
+
+	private long delivered; //Bytes acked so far
+	private long deliveredTime; //nanoTime the latest of them were acked
+	private long firstSentTime; //When the segment that starts the current send interval was sent
+	private long appLimitedUntil; //Nonzero: sends are app-limited until delivered passes this
+
+	//The sample being built from the segments one ACK covers
+	private final Sample sample = new Sample();
+	private long priorTime;
+	private long sendElapsed;
+	private long ackElapsed;
+
+	DeliveryRate() {
+		sample.priorDelivered = -1;
+	}
+
+	/**
+	 * Records the state of the connection in the entry of a segment being
+	 * sent, or sent again, at now.
+	 *
+	 * @param idle
+	 *            true if nothing else is in flight
+	 */
+	public void onSend(RetransmissionQueue.Entry seg, boolean idle, long now) {
+		if (idle) {
+			firstSentTime = now;
+			deliveredTime = now;
+		}
+		seg.txDelivered = delivered;
+		seg.txDeliveredTime = deliveredTime;
+		seg.txFirstSentTime = firstSentTime;
+		seg.txAppLimited = appLimitedUntil != 0;
+	}
+
+	/**
+	 * Counts a segment an ACK covers. The sample is taken from the most
+	 * recently sent one that has gone out on the wire.
+	 */
+	public void onAcked(RetransmissionQueue.Entry seg, long now) {
+		delivered += seg.length;
+		deliveredTime = now;
+		sample.acked += seg.length;
+		if (appLimitedUntil != 0 && delivered > appLimitedUntil)
+			appLimitedUntil = 0;
+
+		//A segment still waiting for the wire (a resend the ACK overtook) has no send time to measure from
+		long sent = seg.wireTime();
+		if (sent != TCPWrapper.QUEUED && seg.txDelivered >= sample.priorDelivered) {
+			sample.priorDelivered = seg.txDelivered;
+			sample.appLimited = seg.txAppLimited;
+			sample.rtt = seg.retransmits == 0 ? now - sent : -1; //Karn: a resent segment's ACK is ambiguous
+			priorTime = seg.txDeliveredTime;
+			sendElapsed = sent - seg.txFirstSentTime;
+			ackElapsed = deliveredTime - priorTime;
+			firstSentTime = sent;
+		}
+	}
+
+	/**
+	 * Finishes the sample for one ACK, after onAcked() for each segment it
+	 * covers.
+	 *
+	 * @param minRtt
+	 *            the shortest round trip seen, in nanoseconds, or 0 if none:
+	 *            an interval shorter than that can't be a real one
+	 * @return the sample, valid until the next ACK, or null if the ACK acked
+	 *         nothing
+	 */
+	public Sample finish(long minRtt) {
+		if (sample.priorDelivered < 0)
+			return null;
+
+		sample.delivered = delivered - sample.priorDelivered;
+		sample.interval = Math.max(sendElapsed, ackElapsed);
+		if (sample.interval > 0 && sample.interval >= minRtt)
+			sample.rate = sample.delivered * 1000000000L / sample.interval;
+		else
+			sample.rate = 0;
+		return sample;
+	}
+
+	/**
+	 * Starts the next sample. Call once the sample from finish() has been
+	 * used.
+	 */
+	public void reset() {
+		sample.priorDelivered = -1;
+		sample.acked = 0;
+	}
+
+	/**
+	 * Called when the application has nothing more to send while the
+	 * window has room: samples are app-limited until what is in flight now
+	 * has been delivered.
+	 */
+	public void markAppLimited(int inFlight) {
+		appLimitedUntil = Math.max(delivered + inFlight, 1);
+	}
+
+	/**
+	 * @return bytes acked so far
+	 */
+	public long getDelivered() {
+		return delivered;
+	}
+}
@@ -1,4 +1,8 @@
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.*;
 import java.io.*;
 
@@ -50,13 +54,27 @@ import java.io.*;
 
 class Demultiplexer extends Thread {
 
-    // this number is for connecting requests, where each connection
-    // should have a unique port number but nothing specific.
-    private static int nextAvailablePortNumber;
+    // the stack's transport, which everything here and in its
+    // connections is sent through, and the stack's clock, which all
+    // their timers run on.
+    private final TCPWrapper wrapper;
+    private final TCPClock clock;
+
+    // range of port numbers for connecting requests, where each
+    // connection should have a unique port number but nothing specific.
+    public static final int FIRST_EPHEMERAL_PORT = 12346; // as long as its a high port number
+    public static final int LAST_EPHEMERAL_PORT = 65535;
+
+    // hands out (and takes back) the ports for connecting requests.
+    private PortAllocator portAllocator;
 
     // port to listen for UDP datagrams
     private int portForUDP;
 
+    // number of consecutive UDP ports, starting at portForUDP, that
+    // datagrams are received on.  each port gets its own thread.
+    private int receivePortCount;
+
     // Hashtable provides an easy way to identify unique connections.
     // will be filled with StudentSocketImpl objects.
     private Hashtable connectionTable;
@@ -66,50 +84,250 @@ class Demultiplexer extends Thread {
     // will be filled with StudentSocketImpl objects.
     private Hashtable listeningTable;
 
+    // ports that a ServerSocket is listen()ing on, mapped to the
+    // backlog it asked for.  only these ports get SYN cookies.
+    private Hashtable<String, Integer> listenPorts;
+
+    // connections completed through a SYN cookie, waiting for an
+    // accept(), oldest first.
+    private Hashtable<String, LinkedList<SynCookies.Established>> cookieAcceptQueues;
+
+    // connections in TIME_WAIT whose StudentSocketImpl has already
+    // been released.
+    private TimeWaitTable timeWaitTable;
+
+    // most datagrams to drain from a receive port per wakeup.  1 means
+    // every datagram is demultiplexed on its own.
+    private int receiveBatchSize = 1;
+
+    // null unless SYN cookies are turned on with setSynCookies()
+    private SynCookies synCookies;
+
+    // null unless Fast Open is turned on with setFastOpen()
+    private FastOpen fastOpen;
 
-    // constructor, of course
-    Demultiplexer( int portNum ) {
+    // null unless compression is turned on with setCompression()
+    private Compression compression;
+
+    // spaces out the data segments of every connection
+    private Pacer pacer;
+
+    // what new connections use, unless they choose otherwise
+    private StudentSocketImpl.CongestionControl congestionControl =
+        StudentSocketImpl.CongestionControl.NONE;
+
+    // the most data a packet for us may carry: the MSS our connections
+    // offer.  datagrams are received into segments from segmentPool,
+    // which are just big enough for that.
+    private int maxSegmentSize = TCPPacket.MAX_PACKET_SIZE;
+    private SegmentPool segmentPool = SegmentPool.getDefault();
+
+
+    // receives on portNum through portNum+receivePorts-1.  the
+    // senders must spread connections over the same range (see
+    // TCPWrapper.setReceivePortCount()).  a TCPStack creates this,
+    // with its wrapper and clock.
+    Demultiplexer( TCPWrapper wrapper, TCPClock clock,
+                   int portNum, int receivePorts ) {
         super();
         this.setDaemon(true);
-        nextAvailablePortNumber = 12345; // as long as its a high port number
+        this.wrapper = wrapper;
+        this.clock = clock;
+        portAllocator = new PortAllocator(FIRST_EPHEMERAL_PORT,
+                                          LAST_EPHEMERAL_PORT);
         portForUDP = portNum; // will listen on this port number
+        receivePortCount = receivePorts;
         connectionTable = new Hashtable();
         listeningTable = new Hashtable();
+        listenPorts = new Hashtable<String, Integer>();
+        cookieAcceptQueues =
+            new Hashtable<String, LinkedList<SynCookies.Established>>();
+        timeWaitTable = new TimeWaitTable(wrapper, clock);
+        pacer = new Pacer(clock);
+    }
+
+
+    public TCPWrapper getWrapper() {
+        return wrapper;
+    }
+
+    public TCPClock getClock() {
+        return clock;
+    }
+
+
+    // turns SYN cookies on or off.  with cookies on, a SYN for a
+    // listening port that has no socket waiting in LISTEN is answered
+    // statelessly instead of being dropped.
+    public void setSynCookies(boolean enabled) {
+        synCookies = enabled ? new SynCookies(clock) : null;
+    }
+
+
+    // turns TCP Fast Open on or off, for listeners (which then accept
+    // data in a SYN with a good cookie) and connecting sockets (which
+    // send data in the SYN to servers they have a cookie for).
+    public void setFastOpen(boolean enabled) {
+        fastOpen = enabled ? new FastOpen() : null;
+    }
+
+    public FastOpen getFastOpen() {
+        return fastOpen;
+    }
+
+
+    // turns compression on or off, for connections made from now on.
+    // a connection is compressed if both sides have it on (see
+    // Compression).
+    public void setCompression(boolean enabled) {
+        compression = enabled ? new Compression() : null;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public Pacer getPacer() {
+        return pacer;
+    }
+
+
+    // sets the congestion control of connections created from now on
+    // (see StudentSocketImpl.setCongestionControl() for one of them).
+    public void setCongestionControl(StudentSocketImpl.CongestionControl cc) {
+        congestionControl = cc;
+    }
+
+    public StudentSocketImpl.CongestionControl getCongestionControl() {
+        return congestionControl;
+    }
+
+
+    // sets the MSS, between TCPPacket.MIN_MSS and TCPPacket.UDP_MAX_DATA.
+    // each connection uses the smaller of this and the other side's.
+    // must be set before start() and before any connection is made.
+    public void setMaxSegmentSize(int mss) {
+        if (mss<TCPPacket.MIN_MSS || mss>TCPPacket.UDP_MAX_DATA)
+            throw new IllegalArgumentException("segment size out of range: "+mss);
+        maxSegmentSize = mss;
+        segmentPool = SegmentPool.forSegmentSize(mss+20);
+        wrapper.setMaxSegmentSize(mss);
+    }
+
+    public int getMaxSegmentSize() {
+        return maxSegmentSize;
+    }
+
+    // the pool of segments big enough for any packet we take.
+    public SegmentPool getSegmentPool() {
+        return segmentPool;
+    }
+
+
+    // makes ephemeral ports come from the given random numbers, so
+    // that a simulation run from a seed is repeatable.  must be set
+    // before any connection is made.
+    public void setPortRandom(Random random) {
+        portAllocator = new PortAllocator(FIRST_EPHEMERAL_PORT,
+                                          LAST_EPHEMERAL_PORT, random);
+    }
+
+
+    // with a batch size above 1, each wakeup of a receive thread reads
+    // every datagram already waiting (up to the batch size), and each
+    // connection gets all of its packets from the batch in one
+    // StudentSocketImpl.receivePackets() call.  must be set before
+    // start().
+    public void setReceiveBatchSize(int size) {
+        receiveBatchSize = Math.max(1, size);
+    }
+
+
+    // starts this thread, which receives on portForUDP, plus one more
+    // receive thread for each additional port in the range.
+    public synchronized void start() {
+        for (int i=1; i<receivePortCount; i++) {
+            final int port = portForUDP+i;
+            Thread t = new Thread() {
+                    public void run() {
+                        receiveLoop(port);
+                    }
+                };
+            t.setName("Demultiplexer-"+port);
+            t.setDaemon(true);
+            t.start();
+        }
+        super.start();
     }
 
 
-    // thread will loop forever, continuously listening for incoming
-    // packets, which will then be unwrapped and demultiplexed BEFORE
-    // receiving the next packet.
     public void run() {
+        receiveLoop(portForUDP);
+    }
+
+
+    // thread will loop forever, continuously listening for incoming
+    // packets on one port, which will then be unwrapped and
+    // demultiplexed BEFORE receiving the next packet.
+    //
+    // with several receive ports, demultiplex() runs on several
+    // threads at once.  the tables are all synchronized, and every
+    // packet of a connection arrives on the same port, so a
+    // connection's packets are still handled in order.
+    //
+    // each datagram is received straight into a pooled segment.  a
+    // connection that keeps the data retains the segment, and this
+    // loop drops its own reference once the packet has been processed.
+    //
+    // the channel is non-blocking: the thread sleeps in a Selector
+    // until something arrives, then reads datagrams until none are
+    // left or the batch is full, and only then demultiplexes them.
+    private void receiveLoop(int port) {
         TCPPacket packet;
-        byte buf[] = new byte[TCPPacket.MAX_PACKET_SIZE+20];
-        DatagramPacket p;
-        DatagramSocket ds;
+        SegmentPool pool = segmentPool;
+        SegmentBuffer seg = null;
+        ByteBuffer buf;
+        InetSocketAddress from;
+        DatagramChannel ds;
+        Selector selector;
+        ArrayList<TCPPacket> batch = new ArrayList<TCPPacket>();
         try{
-            ds = new DatagramSocket(portForUDP);
+            ds = DatagramChannel.open();
+            ds.bind(new InetSocketAddress(port));
+            ds.configureBlocking(false);
+            selector = Selector.open();
+            ds.register(selector, SelectionKey.OP_READ);
             
             // MAIN LOOP OF THE THREAD:
             //--------------------------------------
             while (true) {
                 
-                // listen for UDP datagrams this function blocks, which
-                // is what we want.
-                p = new DatagramPacket(buf,TCPPacket.MAX_PACKET_SIZE+20);
-
-                ds.receive(p);
-
-                // when received, invoke TCPWrapper.unwrap(datagram)
-                packet = TCPWrapper.unwrap(p);
-
-                System.out.println("\n>>> packet received from "+
-                                   p.getAddress()+" size="+p.getLength());
-                System.out.println(">>> "+packet+"\n");
-
-                
-                // invoke demultiplex - will NOT return until the packet
-                // has been processed completely.
-                demultiplex(packet);
+                if (seg==null)
+                    seg = pool.allocate();
+                buf = seg.buffer().duplicate();
+                buf.clear();
+
+                from = (InetSocketAddress) ds.receive(buf);
+
+                if (from==null) {
+                    // nothing waiting.  hand over what we have, or
+                    // sleep until something arrives, which is what we
+                    // want.
+                    if (batch.isEmpty()) {
+                        selector.select();
+                        selector.selectedKeys().clear();
+                    }
+                    else
+                        deliverBatch(batch);
+                    continue;
+                }
+
+                packet = unwrap(seg, buf.position(), from.getAddress());
+                seg = null; // now belongs to the batch
+
+                batch.add(packet);
+                if (batch.size() >= receiveBatchSize)
+                    deliverBatch(batch);
             }
             //--------------------------------------
 
@@ -121,6 +339,81 @@ class Demultiplexer extends Thread {
     }
 
     
+    // hands one datagram to the stack as if it had just arrived on a
+    // receive port.  used by a Simulation, which carries datagrams
+    // itself and never start()s this thread.  the segment holds the
+    // datagram from its start, and is released here.
+    void receiveDatagram(SegmentBuffer seg, int length, InetAddress from) {
+        ArrayList<TCPPacket> batch = new ArrayList<TCPPacket>(1);
+        batch.add(unwrap(seg, length, from));
+        deliverBatch(batch);
+    }
+
+
+    // turns a datagram received into a segment into a TCPPacket, and
+    // captures and prints it.
+    private TCPPacket unwrap(SegmentBuffer seg, int length, InetAddress from) {
+        // when received, invoke TCPWrapper.unwrap(datagram)
+        TCPPacket packet = TCPWrapper.unwrap(seg, length, from);
+
+        PcapWriter capture = wrapper.getCapture();
+        if (capture!=null)
+            capture.captureReceived(from, seg.wire());
+
+        System.out.println("\n>>> packet received from "+
+                           from+" size="+length);
+        System.out.println(">>> "+packet+"\n");
+        return packet;
+    }
+
+
+    // demultiplexes a batch of packets, in order, then drops the
+    // receive loop's reference to each one's segment and empties the
+    // batch.
+    //
+    // consecutive packets for known connections are grouped, and each
+    // connection gets its group in one receivePackets() call.  a packet
+    // for no known connection (a SYN, a cookie ACK, TIME_WAIT) may
+    // register a connection that later packets belong to, so the
+    // groups collected so far are delivered before it is handled on its
+    // own.
+    private void deliverBatch(ArrayList<TCPPacket> batch) {
+        LinkedHashMap<StudentSocketImpl, List<TCPPacket>> groups =
+            new LinkedHashMap<StudentSocketImpl, List<TCPPacket>>();
+        try {
+            for (int i=0; i<batch.size(); i++) {
+                TCPPacket packet = batch.get(i);
+                StudentSocketImpl c = (StudentSocketImpl) connectionTable.get(
+                    getHashTableKey(packet.sourceAddr, packet.destPort,
+                                    packet.sourcePort));
+                if (c!=null) {
+                    List<TCPPacket> group = groups.get(c);
+                    if (group==null) {
+                        group = new ArrayList<TCPPacket>();
+                        groups.put(c, group);
+                    }
+                    group.add(packet);
+                }
+                else {
+                    deliverGroups(groups);
+                    demultiplex(packet);
+                }
+            }
+            deliverGroups(groups);
+        } finally {
+            for (int i=0; i<batch.size(); i++)
+                batch.get(i).getSegment().release();
+            batch.clear();
+        }
+    }
+
+    private void deliverGroups(LinkedHashMap<StudentSocketImpl, List<TCPPacket>> groups) {
+        for (Map.Entry<StudentSocketImpl, List<TCPPacket>> e : groups.entrySet())
+            e.getKey().receivePackets(e.getValue());
+        groups.clear();
+    }
+
+
     // receives the TCP packet, decides which connection to pass it off
     // to.  also handles special case of a new connection, or an
     // un-usable packet.
@@ -146,6 +439,10 @@ class Demultiplexer extends Thread {
             // System.out.println("%% connection found: "+c);
             c.receivePacket( packet );
         }
+        else if (timeWaitTable.receivePacket(packet)) {
+            // the connection is in TIME_WAIT, and the table has
+            // answered for it.
+        }
         else if (packet.synFlag) { // if packet is a SYN to open connection
             // if the connection wasnt found yet, then we check for
             // listening sockets - of course, the packet received had to
@@ -162,12 +459,129 @@ class Demultiplexer extends Thread {
                 // System.out.println("%% listeningSocket found: "+c);
   	        c.receivePacket(packet);
             }
+            else if (synCookies!=null && !packet.ackFlag &&
+                     listenPorts.get(hashString)!=null)
+                sendSynCookie(packet);
 	    else
 	      System.err.println("!!! UNMATCHED PACKET");
         }
-	else
+        else if (synCookies!=null && packet.ackFlag && !packet.finFlag &&
+                 listenPorts.get(getHashTableKey(packet.destPort))!=null)
+            receiveCookieAck(packet);
+	else {
 	  System.err.println("!!! UNMATCHED PACKET");
+          sendReset(packet);
+        }
+
+    }
+
 
+    // answers a segment for a connection that isn't here (any more)
+    // with a reset, as in RFC 793, so that the other side can stop
+    // retransmitting to it: a FIN whose ACK was lost, say, that comes
+    // back after our TIME_WAIT is over.  a SYN isn't answered, so a
+    // client whose SYN comes before the listener keeps retrying, and a
+    // reset never is.
+    private void sendReset(TCPPacket p) {
+        if (p.rstFlag)
+            return;
+
+        TCPPacket rst;
+        if (p.ackFlag)
+            rst = new TCPPacket(p.destPort, p.sourcePort, p.ackNum, 0,
+                                false, false, false, 0, null);
+        else
+            rst = new TCPPacket(p.destPort, p.sourcePort, 0,
+                                p.seqNum + p.getDataLength() +
+                                (p.finFlag ? 1 : 0),
+                                true, false, false, 0, null);
+        rst.rstFlag = true;
+        wrapper.send(rst, p.sourceAddr);
+    }
+
+
+    // answers a SYN with a SYN+ACK whose sequence number is a cookie,
+    // without creating any state for the connection.  the MSS the
+    // connection gets goes in the cookie.  compression isn't agreed
+    // to: there is no room left in the cookie to remember it.
+    private void sendSynCookie(TCPPacket syn) {
+        int mss = Math.min(syn.getMss(), maxSegmentSize);
+        TCPPacket synAck = new TCPPacket(syn.destPort, syn.sourcePort,
+                                         synCookies.encode(syn, mss),
+                                         syn.seqNum+1, true, true, false,
+                                         StudentSocketImpl.BUFFER_SIZE, null);
+        synAck.addMss(maxSegmentSize);
+        wrapper.send(synAck, syn.sourceAddr);
+    }
+
+    // the last ACK of a cookie handshake.  if the cookie is good, the
+    // connection is given to a socket in LISTEN if there is one, or
+    // queued for the next accept() otherwise.
+    private void receiveCookieAck(TCPPacket ack) {
+        SynCookies.Established e = synCookies.decode(ack);
+        if (e==null) {
+            System.err.println("!!! UNMATCHED PACKET");
+            return;
+        }
+
+        String hashKey = getHashTableKey(ack.destPort);
+        StudentSocketImpl c;
+        synchronized (this) {
+            c = (StudentSocketImpl) listeningTable.get(hashKey);
+            if (c==null) {
+                LinkedList<SynCookies.Established> queue =
+                    cookieAcceptQueues.get(hashKey);
+                if (queue==null) {
+                    queue = new LinkedList<SynCookies.Established>();
+                    cookieAcceptQueues.put(hashKey, queue);
+                }
+
+                // a retransmitted ACK must not queue the connection twice
+                for (SynCookies.Established q : queue) {
+                    if (q.remotePort==e.remotePort &&
+                        q.remoteAddr.equals(e.remoteAddr))
+                        return;
+                }
+
+                if (queue.size() >= listenPorts.get(hashKey).intValue()) {
+                    System.err.println("!!! ACCEPT QUEUE FULL, COOKIE DROPPED");
+                    return;
+                }
+                queue.add(e);
+                return;
+            }
+        }
+        c.acceptCookieConnection(e);
+    }
+
+    // for a socket about to accept() on this port: takes the oldest
+    // connection completed through a SYN cookie, or if there is none,
+    // registers the socket in the listeningTable and returns null.  one
+    // step, so that a cookie ACK can't be queued in between, where no
+    // accept() would see it until the next.
+    synchronized public SynCookies.Established pollCookieOrListen(
+        int localPort, StudentSocketImpl connection) throws IOException {
+
+        LinkedList<SynCookies.Established> queue =
+            cookieAcceptQueues.get(getHashTableKey(localPort));
+        if (queue!=null && !queue.isEmpty())
+            return queue.removeFirst();
+
+        registerListeningSocket(localPort, connection);
+        return null;
+    }
+
+    // marks a port as having a ServerSocket listen()ing on it.
+    synchronized public void registerListenPort(int localPort, int backlog) {
+        listenPorts.put(getHashTableKey(localPort), Integer.valueOf(backlog));
+    }
+
+    // the ServerSocket on this port was closed.  any connections still
+    // waiting in its accept queue are forgotten.
+    synchronized public void unregisterListenPort(int localPort) {
+        String hashKey = getHashTableKey(localPort);
+        listenPorts.remove(hashKey);
+        cookieAcceptQueues.remove(hashKey);
     }
 
 
@@ -197,6 +611,13 @@ class Demultiplexer extends Thread {
         connectionTable.put( hashKey, connection);
     }
 
+    // the connection registered for the 4-tuple, or null.
+    synchronized public StudentSocketImpl getConnection(InetAddress remoteHost,
+                                   int localPort, int remotePort) {
+        return (StudentSocketImpl) connectionTable.get(
+            getHashTableKey(remoteHost, localPort, remotePort));
+    }
+
     synchronized public void unregisterListeningSocket (
         int localPort, StudentSocketImpl connection) throws IOException {
 
@@ -218,6 +639,35 @@ class Demultiplexer extends Thread {
             // must be the EXACT SAME reference
             throw(new IOException("%% CANNOT UNREGISTER CONNECTION"));
         connectionTable.remove(hashKey);
+
+        // a connection's local port is only in the ephemeral range if
+        // getNextAvailablePort() handed it out (listening ports in the
+        // range are never handed out, and freeing a free port is a
+        // no-op).
+        portAllocator.release(localPort);
+    }
+
+
+    // moves a connection from the connectionTable to the TIME_WAIT
+    // table.  returns false, leaving the connection registered, if the
+    // table can't hold it.
+    synchronized public boolean registerTimeWait(InetAddress remoteHost,
+                                   int localPort, int remotePort,
+                                   TCPPacket lastAck,
+                                   StudentSocketImpl connection) throws IOException{
+
+        if (!timeWaitTable.add(remoteHost, localPort, remotePort,
+                               lastAck.seqNum, lastAck.ackNum,
+                               StudentSocketImpl.TIME_WAIT_LENGTH))
+            return false;
+        unregisterConnection(remoteHost, localPort, remotePort, connection);
+        return true;
+    }
+
+    // number of connections currently held in TIME_WAIT.  entries whose
+    // time is up but that haven't been swept out yet don't count.
+    public int getTimeWaitCount() {
+        return timeWaitTable.liveCount();
     }
 
 
@@ -234,10 +684,35 @@ class Demultiplexer extends Thread {
     }
 
     // for connections that are actively connecting (as opposed to
-    // passively listening for a connection)
-    synchronized public int getNextAvailablePort() {
-        nextAvailablePortNumber++;
-        return(nextAvailablePortNumber);
+    // passively listening for a connection).  the port stays taken
+    // until the connection is unregistered.
+    public int getNextAvailablePort() throws IOException {
+        int port = portAllocator.allocate();
+
+        // ports a server is listening on can't be handed out.  they are
+        // kept claimed while we look for another, so the scan can't
+        // return them again, then given back.
+        List<Integer> skipped = null;
+        while (port!=-1 && isListeningPort(port)) {
+            if (skipped==null)
+                skipped = new ArrayList<Integer>();
+            skipped.add(Integer.valueOf(port));
+            port = portAllocator.allocate();
+        }
+        if (skipped!=null)
+            for (int skippedPort : skipped)
+                portAllocator.release(skippedPort);
+
+        if (port==-1)
+            throw(new IOException("%% NO EPHEMERAL PORTS AVAILABLE"));
+        return(port);
+    }
+
+    // the port has a ServerSocket or an accept()ing socket on it
+    synchronized private boolean isListeningPort(int port) {
+        String hashKey = getHashTableKey(port);
+        return (listenPorts.get(hashKey)!=null ||
+                listeningTable.get(hashKey)!=null);
     }
 
     static public void main (String args[]) {
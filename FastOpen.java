@@ -0,0 +1,123 @@
+import java.net.InetAddress;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//---------------------------------------------------
+//
+// class FastOpen
+//
+// TCP Fast Open (RFC 7413): a client that has connected to a server
+// before sends its first data in the SYN, and the server hands it to
+// the application straight away instead of a round trip later.
+//
+// the server proves the client's address with a cookie, given in the
+// Fast Open option (kind 34) of a SYN+ACK when a SYN asks for one
+// with an empty option.  the cookie is a keyed hash of the client's
+// address, so the server keeps nothing per client.  the client caches
+// it per server address, with the server's MSS, and puts it in the
+// option of its later SYNs, along with as much data as fits one
+// segment of that size (see maxSynData()).  a SYN whose cookie
+// doesn't check out has its data ignored (the client sends it again
+// after the handshake, as usual) and is answered with a fresh cookie.
+//
+// one FastOpen (in the Demultiplexer) serves both sides of the
+// stack: it issues cookies for its listeners and caches them for its
+// clients.
+//
+//---------------------------------------------------
+class FastOpen {
+
+	static final int OPTION_KIND = 34;
+
+	static final int COOKIE_LENGTH = 8;
+
+	//Header space a SYN with a cookie takes past the 20 bytes: the option takes 2 + COOKIE_LENGTH bytes, padded to
+	//12, and the MSS option 4
+	static final int SYN_OPTIONS_LENGTH = 16;
+
+	//Most servers whose cookies are remembered
+	private static final int CACHE_SIZE = 1024;
+
+	private final int secret;
+
+	/**
+	 * What a server gave us.
+	 */
+	private static class Cached {
+		final byte[] cookie;
+		final int mss;
+
+		Cached(byte[] cookie, int mss) {
+			this.cookie = cookie;
+			this.mss = mss;
+		}
+	}
+
+	//Cookies given to us, by server address, least recently used first
+	private final LinkedHashMap<InetAddress, Cached> cache = new LinkedHashMap<InetAddress, Cached>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<InetAddress, Cached> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	FastOpen() {
+		secret = new SecureRandom().nextInt();
+	}
+
+	/**
+	 * @param client
+	 *            the address a SYN came from
+	 * @return the cookie for that address
+	 */
+	public byte[] cookieFor(InetAddress client) {
+		byte[] cookie = new byte[COOKIE_LENGTH];
+		for (int half = 0; half < 2; half++) {
+			int h = SynCookies.mix(secret, half);
+			for (byte b : client.getAddress())
+				h = SynCookies.mix(h, b & 0xff);
+			h = SynCookies.avalanche(h);
+			for (int i = 0; i < 4; i++)
+				cookie[half * 4 + i] = (byte) (h >>> (24 - 8 * i));
+		}
+		return cookie;
+	}
+
+	/**
+	 * @return true if the cookie is the one issued to this address
+	 */
+	public boolean isValid(InetAddress client, byte[] cookie) {
+		return cookie.length == COOKIE_LENGTH && MessageDigest.isEqual(cookie, cookieFor(client));
+	}
+
+	/**
+	 * @return the cookie a server gave us, or null if we have none for it
+	 */
+	public synchronized byte[] getCachedCookie(InetAddress server) {
+		Cached c = cache.get(server);
+		return c == null ? null : c.cookie;
+	}
+
+	/**
+	 * @param mss
+	 *            our own MSS
+	 * @return the most data a SYN to the server may carry: what fits one
+	 *         segment of the smaller of its MSS and ours, besides the options
+	 */
+	public synchronized int maxSynData(InetAddress server, int mss) {
+		Cached c = cache.get(server);
+		if (c != null)
+			mss = Math.min(mss, c.mss);
+		return mss - SYN_OPTIONS_LENGTH;
+	}
+
+	/**
+	 * Remembers the cookie in a server's SYN+ACK, and the MSS it offered, for
+	 * the next connection to it.
+	 */
+	public synchronized void cacheCookie(InetAddress server, byte[] cookie, int mss) {
+		cache.put(server, new Cached(cookie, mss));
+	}
+}
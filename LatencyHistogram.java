@@ -0,0 +1,122 @@
+//---------------------------------------------------
+//
+// class LatencyHistogram
+//
+// counts durations (in microseconds, or any other unit) in log-linear
+// buckets: exact below 16, then 16 buckets for each power of two, so
+// every value is kept to within about 6%.  recording is a few shifts
+// and an increment, and the memory used is fixed however many values
+// are recorded.
+//
+//---------------------------------------------------
+class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	private final long[] counts = new long[64 * SUB_BUCKETS];
+	private long count;
+	private long total;
+	private long min = Long.MAX_VALUE;
+	private long max;
+
+	/**
+	 * Records one value. Negative values count as 0.
+	 */
+	public synchronized void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts[index(value)]++;
+		count++;
+		total += value;
+		min = Math.min(min, value);
+		max = Math.max(max, value);
+	}
+
+	/**
+	 * Adds every value recorded in another histogram to this one.
+	 */
+	public void add(LatencyHistogram other) {
+		LatencyHistogram copy = other.copy();
+		synchronized (this) {
+			for (int i = 0; i < counts.length; i++)
+				counts[i] += copy.counts[i];
+			count += copy.count;
+			total += copy.total;
+			min = Math.min(min, copy.min);
+			max = Math.max(max, copy.max);
+		}
+	}
+
+	/**
+	 * @return a snapshot of this histogram
+	 */
+	public synchronized LatencyHistogram copy() {
+		LatencyHistogram h = new LatencyHistogram();
+		System.arraycopy(counts, 0, h.counts, 0, counts.length);
+		h.count = count;
+		h.total = total;
+		h.min = min;
+		h.max = max;
+		return h;
+	}
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the mean, or 0 if nothing has been recorded
+	 */
+	public synchronized long getMean() {
+		return count == 0 ? 0 : total / count;
+	}
+
+	public synchronized long getMin() {
+		return count == 0 ? 0 : min;
+	}
+
+	public synchronized long getMax() {
+		return max;
+	}
+
+	/**
+	 * @param percent
+	 *            which percentile, from 0 to 100
+	 * @return the value below which that percentage of the recorded values
+	 *         fall (the middle of its bucket), or 0 if nothing has been
+	 *         recorded
+	 */
+	public synchronized long getPercentile(double percent) {
+		if (count == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(percent / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(Math.max(value(i), min), max);
+		}
+		return max;
+	}
+
+	private static int index(long v) {
+		if (v < SUB_BUCKETS)
+			return (int) v;
+		int msb = 63 - Long.numberOfLeadingZeros(v);
+		int sub = (int) (v >>> (msb - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (msb - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return the middle of a bucket
+	 */
+	private static long value(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int e = index / SUB_BUCKETS;
+		int sub = index % SUB_BUCKETS;
+		long lower = (long) (SUB_BUCKETS + sub) << (e - 1);
+		return lower + ((1L << (e - 1)) >> 1);
+	}
+}
@@ -0,0 +1,113 @@
+import java.util.PriorityQueue;
+import java.util.TimerTask;
+
+//---------------------------------------------------
+//
+// class Pacer
+//
+// the pacing scheduler shared by the connections of a Demultiplexer.
+// a connection spaces its data segments at a rate derived from its
+// window and smoothed round trip time, rather than sending a whole
+// window at once; when the next segment isn't due yet, it asks the
+// pacer to call it back at the time it is.
+//
+// every waiting connection is kept in one queue ordered by due time,
+// served by a single TCPClock timer, so pacing a thousand connections
+// costs one timer thread, not a thousand.  timers run to the
+// millisecond, so a connection released late sends the segments that
+// have come due meanwhile in one go (see StudentSocketImpl).
+//
+//---------------------------------------------------
+class Pacer {
+
+	/**
+	 * A connection waiting for its next segment to come due.
+	 */
+	private static class Entry implements Comparable<Entry> {
+		final long due;
+		final StudentSocketImpl impl;
+
+		Entry(long due, StudentSocketImpl impl) {
+			this.due = due;
+			this.impl = impl;
+		}
+
+		public int compareTo(Entry e) {
+			return Long.compare(due, e.due);
+		}
+	}
+
+	private final TCPClock clock;
+	private final PriorityQueue<Entry> waiting = new PriorityQueue<Entry>();
+	private TCPClock.Timer timer; //Only while something is waiting: its thread would keep the JVM running
+	private long wakeAt = Long.MAX_VALUE; //nanoTime the earliest task scheduled on the timer runs at
+
+	Pacer(TCPClock clock) {
+		this.clock = clock;
+	}
+
+	/**
+	 * Calls impl.paceDue() at the given time, or soon after it.
+	 *
+	 * @param impl
+	 *            the connection, which must not already be waiting
+	 * @param due
+	 *            a TCPClock nanoTime
+	 */
+	public synchronized void schedule(StudentSocketImpl impl, long due) {
+		waiting.add(new Entry(due, impl));
+		if (due < wakeAt)
+			wakeUp(due);
+	}
+
+	/**
+	 * @return the number of connections waiting for a segment to come due
+	 */
+	public synchronized int getWaitingCount() {
+		return waiting.size();
+	}
+
+	/**
+	 * Schedules the timer to run at the given time. A task already scheduled
+	 * for later is left alone; it finds nothing due, or what has come due
+	 * since.
+	 */
+	private void wakeUp(long due) {
+		if (timer == null)
+			timer = clock.newTimer();
+		wakeAt = due;
+		long delay = (due - clock.nanoTime() + 999999) / 1000000;
+		timer.schedule(new TimerTask() {
+			public void run() {
+				release();
+			}
+		}, Math.max(delay, 0));
+	}
+
+	/**
+	 * Calls back every connection that has come due, outside the pacer's
+	 * monitor, since each one takes its own and may schedule itself again.
+	 */
+	private void release() {
+		while (true) {
+			Entry e;
+			synchronized (this) {
+				long now = clock.nanoTime();
+				e = waiting.peek();
+				if (e == null || e.due > now) {
+					wakeAt = Long.MAX_VALUE;
+					if (e != null)
+						wakeUp(e.due);
+					else {
+						//Nothing left to pace: let the timer's thread go until something waits again
+						timer.cancel();
+						timer = null;
+					}
+					return;
+				}
+				waiting.poll();
+			}
+			e.impl.paceDue();
+		}
+	}
+}
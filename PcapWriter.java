@@ -0,0 +1,286 @@
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+//---------------------------------------------------
+//
+// class PcapWriter
+//
+// captures TCP segments into a pcap file that tcpdump or Wireshark
+// can read.  each segment gets a synthesized IPv4 header (link type
+// RAW), with the IP and TCP checksums filled in, so the tools see
+// ordinary TCP over IP rather than our UDP wrapping.
+//
+// capture() only copies the segment into a bounded ring buffer; a
+// background thread builds the records and writes the file.  if the
+// writer falls behind and the ring is full, segments are counted as
+// dropped instead of making the stack wait.
+//
+// TCPWrapper.send() captures what is sent (before any simulated
+// loss), and the Demultiplexer what is received.  with both ends of a
+// connection in one process, each segment that isn't dropped shows up
+// twice.
+//
+//---------------------------------------------------
+class PcapWriter extends Thread {
+
+	public static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	private static final int LINKTYPE_RAW = 101;
+
+	// ring record: tcp length, timestamp in microseconds, source and destination addresses
+	private static final int RECORD_HEADER = 4 + 8 + 4 + 4;
+
+	private final OutputStream out;
+	private final InetAddress localAddr;
+	private final long baseMicros;
+
+	private final byte[] ring;
+	private final ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER);
+	private int head; // guarded by this
+	private int size;
+	private long dropped;
+	private boolean closed;
+	private boolean drained;
+
+	/**
+	 * Opens the file and writes the pcap file header. Call start() to start
+	 * writing captured segments.
+	 *
+	 * @param fileName
+	 *            the file to write
+	 * @param bufferSize
+	 *            bytes of captured segments that can wait for the writer
+	 */
+	PcapWriter(String fileName, int bufferSize) throws IOException {
+		super("PcapWriter");
+		setDaemon(true);
+		out = new BufferedOutputStream(new FileOutputStream(fileName), 64 * 1024);
+		ring = new byte[bufferSize];
+		baseMicros = System.currentTimeMillis() * 1000 - System.nanoTime() / 1000;
+
+		InetAddress local;
+		try {
+			local = InetAddress.getLocalHost();
+		} catch (IOException e) {
+			local = InetAddress.getLoopbackAddress();
+		}
+		localAddr = local instanceof Inet4Address ? local : InetAddress.getByName("127.0.0.1");
+
+		ByteBuffer h = ByteBuffer.allocate(24);
+		h.putInt(0xa1b2c3d4); //Magic: microsecond timestamps, written big endian
+		h.putShort((short) 2).putShort((short) 4); //Version 2.4
+		h.putInt(0).putInt(0); //GMT, timestamp accuracy
+		h.putInt(65535); //Snapshot length
+		h.putInt(LINKTYPE_RAW);
+		out.write(h.array());
+
+		//Whatever is still in the ring goes to the file when the program exits
+		Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+	}
+
+	/**
+	 * Captures a segment this host sent.
+	 *
+	 * @param remote
+	 *            the address it was sent to
+	 * @param segment
+	 *            the TCP header and data, from position to limit
+	 */
+	public void captureSent(InetAddress remote, ByteBuffer segment) {
+		capture(localFor(remote), remote, segment);
+	}
+
+	/**
+	 * Captures a segment this host received.
+	 *
+	 * @param remote
+	 *            the address it came from
+	 * @param segment
+	 *            the TCP header and data, from position to limit
+	 */
+	public void captureReceived(InetAddress remote, ByteBuffer segment) {
+		capture(remote, localFor(remote), segment);
+	}
+
+	/**
+	 * @return how many segments were not captured because the buffer was full
+	 *         (or weren't IPv4)
+	 */
+	public synchronized long getDroppedCount() {
+		return dropped;
+	}
+
+	/**
+	 * Writes out everything captured so far and closes the file. Later
+	 * segments are dropped.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			notifyAll();
+			//Wait for the writer to empty the ring, unless it was never started
+			while (isAlive() && !drained) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+		try {
+			if (!isAlive())
+				writeRecords(takeAll());
+			out.close();
+		} catch (IOException e) {
+			System.out.println("pcap capture failed: " + e);
+		}
+	}
+
+	private InetAddress localFor(InetAddress remote) {
+		return remote.isLoopbackAddress() ? remote : localAddr;
+	}
+
+	/**
+	 * Copies the segment into the ring, or counts it as dropped. Doesn't
+	 * block, apart from the copy itself.
+	 */
+	private synchronized void capture(InetAddress src, InetAddress dst, ByteBuffer segment) {
+		int len = segment.remaining();
+		if (closed || size + RECORD_HEADER + len > ring.length || !(src instanceof Inet4Address)
+				|| !(dst instanceof Inet4Address)) {
+			dropped++;
+			return;
+		}
+
+		long micros = baseMicros + System.nanoTime() / 1000;
+		recordHeader.clear();
+		recordHeader.putInt(len).putLong(micros).put(src.getAddress()).put(dst.getAddress());
+		recordHeader.flip();
+		put(recordHeader);
+		put(segment.duplicate());
+
+		if (size == RECORD_HEADER + len) //The writer may be waiting for an empty ring to fill
+			notifyAll();
+	}
+
+	private void put(ByteBuffer b) {
+		while (b.hasRemaining()) {
+			int tail = (head + size) % ring.length;
+			int n = Math.min(b.remaining(), ring.length - tail);
+			b.get(ring, tail, n);
+			size += n;
+		}
+	}
+
+	/**
+	 * Takes everything in the ring, emptying it.
+	 *
+	 * @return the records, in a new array
+	 */
+	private synchronized byte[] takeAll() {
+		byte[] records = new byte[size];
+		int first = Math.min(size, ring.length - head);
+		System.arraycopy(ring, head, records, 0, first);
+		System.arraycopy(ring, 0, records, first, size - first);
+		head = (head + size) % ring.length;
+		size = 0;
+		return records;
+	}
+
+	/**
+	 * The writer: takes whatever has been captured, a ring's worth at most, and
+	 * writes it out, until closed.
+	 */
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				byte[] records;
+				synchronized (this) {
+					while (size == 0 && !closed)
+						wait();
+					if (size == 0) {
+						out.flush();
+						drained = true;
+						notifyAll();
+						return;
+					}
+					records = takeAll();
+				}
+				writeRecords(records);
+
+				boolean caughtUp;
+				synchronized (this) {
+					caughtUp = size == 0;
+				}
+				if (caughtUp) //Make the file readable while the capture goes on
+					out.flush();
+			}
+		} catch (IOException | InterruptedException e) {
+			System.out.println("pcap capture failed: " + e);
+			synchronized (this) {
+				drained = true;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Turns ring records into pcap records: a record header, a synthesized
+	 * IPv4 header and the TCP segment with its checksum filled in.
+	 */
+	private void writeRecords(byte[] records) throws IOException {
+		ByteBuffer in = ByteBuffer.wrap(records);
+		while (in.hasRemaining()) {
+			int len = in.getInt();
+			long micros = in.getLong();
+			byte[] src = new byte[4];
+			byte[] dst = new byte[4];
+			in.get(src).get(dst);
+
+			ByteBuffer rec = ByteBuffer.allocate(16 + 20 + len);
+			rec.putInt((int) (micros / 1000000)).putInt((int) (micros % 1000000));
+			rec.putInt(20 + len).putInt(20 + len);
+
+			int ip = rec.position();
+			rec.put((byte) 0x45).put((byte) 0); //Version 4, 20 byte header; no TOS
+			rec.putShort((short) (20 + len));
+			rec.putShort((short) 0).putShort((short) 0x4000); //No id; don't fragment
+			rec.put((byte) 64).put((byte) 6); //TTL; protocol TCP
+			rec.putShort((short) 0); //Checksum, filled in below
+			rec.put(src).put(dst);
+			rec.putShort(ip + 10, (short) checksum(rec.array(), ip, 20, 0));
+
+			int tcp = rec.position();
+			in.get(rec.array(), tcp, len);
+			rec.putShort(tcp + 16, (short) 0);
+			long pseudo = sum(src, 0, 4) + sum(dst, 0, 4) + 6 + len;
+			rec.putShort(tcp + 16, (short) checksum(rec.array(), tcp, len, pseudo));
+
+			out.write(rec.array());
+		}
+	}
+
+	private static int checksum(byte[] b, int off, int len, long initial) {
+		long s = initial + sum(b, off, len);
+		while ((s >> 16) != 0)
+			s = (s & 0xffff) + (s >> 16);
+		return (int) ~s & 0xffff;
+	}
+
+	private static long sum(byte[] b, int off, int len) {
+		long s = 0;
+		for (int i = 0; i + 1 < len; i += 2)
+			s += ((b[off + i] & 0xff) << 8) | (b[off + i + 1] & 0xff);
+		if ((len & 1) != 0)
+			s += (b[off + len - 1] & 0xff) << 8;
+		return s;
+	}
+}
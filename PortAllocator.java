@@ -0,0 +1,92 @@
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//---------------------------------------------------
+//
+// class PortAllocator
+//
+// hands out local port numbers for actively opened connections from a
+// fixed range, and takes them back when the connection goes away.
+//
+// one bit per port, packed into longs.  a set bit is a port in use.
+// allocate() starts scanning at a random word so that callers don't
+// all fight over the low end of the range, and claims a bit with a
+// compareAndSet - no locks are taken on either path.
+//
+//---------------------------------------------------
+class PortAllocator {
+
+	private final int firstPort;
+	private final int lastPort;
+	private final AtomicLongArray bits;
+	private final Random random; //null for ThreadLocalRandom
+
+	/**
+	 * @param firstPort lowest port number to hand out
+	 * @param lastPort highest port number to hand out
+	 */
+	PortAllocator(int firstPort, int lastPort) {
+		this(firstPort, lastPort, null);
+	}
+
+	/**
+	 * @param firstPort lowest port number to hand out
+	 * @param lastPort highest port number to hand out
+	 * @param random where scans start from, so that a seeded simulation hands out the same ports every run
+	 */
+	PortAllocator(int firstPort, int lastPort, Random random) {
+		this.random = random;
+		this.firstPort = firstPort;
+		this.lastPort = lastPort;
+		int ports = lastPort - firstPort + 1;
+		bits = new AtomicLongArray((ports + 63) / 64);
+
+		//Bits past lastPort in the final word are marked used forever
+		int tail = ports % 64;
+		if (tail != 0)
+			bits.set(bits.length() - 1, -1L << tail);
+	}
+
+	/**
+	 * Claims a free port.
+	 *
+	 * @return the port, or -1 if every port in the range is in use
+	 */
+	public int allocate() {
+		int words = bits.length();
+		int start = (random != null ? random : ThreadLocalRandom.current()).nextInt(words);
+
+		for (int n = 0; n < words; n++) {
+			int w = (start + n) % words;
+			long word = bits.get(w);
+			while (word != -1L) {
+				long bit = Long.lowestOneBit(~word);
+				if (bits.compareAndSet(w, word, word | bit))
+					return firstPort + w * 64 + Long.numberOfTrailingZeros(bit);
+				word = bits.get(w); //Lost a race for this word, look at it again
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns a port to the free pool. Ports outside the range, or not in use,
+	 * are ignored.
+	 *
+	 * @param port the port to free
+	 */
+	public void release(int port) {
+		if (port < firstPort || port > lastPort)
+			return;
+
+		int w = (port - firstPort) / 64;
+		long bit = 1L << ((port - firstPort) % 64);
+		long word;
+		do {
+			word = bits.get(w);
+			if ((word & bit) == 0)
+				return;
+		} while (!bits.compareAndSet(w, word, word & ~bit));
+	}
+}
@@ -0,0 +1,147 @@
+//---------------------------------------------------
+//
+// class RetransmissionQueue
+//
+// everything a connection has sent that takes up sequence numbers
+// and isn't acked yet - its SYN (or SYN+ACK), data segments and FIN -
+// in sequence number order, which is the order they were first sent.
+//
+// each entry keeps what is needed to send it again: the control
+// packet, or the pooled segment holding the data (with a reference
+// held on it, so the buffer stays valid however the send queue
+// changes).  it also keeps when it was last sent, how many times it
+// has been sent again, and what DeliveryRate noted at the time.  when
+// it actually went out, behind the rate limit, is stamped on the
+// packet or segment by TCPWrapper (see wireTime()).
+//
+// entries live in a ring, so a cumulative ACK removes them from the
+// front in O(1) each, and the Entry objects are reused.  the queue
+// has no timers of its own: the connection runs one retransmission
+// timer, for the oldest entry (see StudentSocketImpl).
+//
+//---------------------------------------------------
+class RetransmissionQueue {
+
+	/**
+	 * Something sent and not yet acked.
+	 */
+	static class Entry {
+		int seq;
+		int length; //Sequence numbers taken up: the data, plus one for a SYN or FIN
+		TCPPacket packet; //A SYN, SYN+ACK or FIN; null for a data segment
+		SegmentBuffer seg; //The data segment; null for a control packet
+		long sentTime; //TCPClock nanoTime it was last sent at (queued to go out)
+		int retransmits; //Times it has been sent again
+		boolean lost; //Marked to be sent again
+
+		//What the connection had delivered when it was last sent (see DeliveryRate)
+		long txDelivered;
+		long txDeliveredTime;
+		long txFirstSentTime;
+		boolean txAppLimited;
+
+		/**
+		 * @return the seq number after it
+		 */
+		int end() {
+			return seq + length;
+		}
+
+		/**
+		 * @return the TCPClock nanoTime it last went out on the wire, or
+		 *         TCPWrapper.QUEUED while it is still waiting to
+		 */
+		long wireTime() {
+			return seg != null ? seg.sentTime : packet.sentTime;
+		}
+	}
+
+	private Entry[] ring = new Entry[16];
+	private int head;
+	private int count;
+
+	/**
+	 * Adds what has just been sent for the first time, after everything
+	 * already queued.
+	 *
+	 * @param packet
+	 *            a control packet, or null
+	 * @param seg
+	 *            a data segment, or null; the queue takes a reference to it
+	 * @return the new entry
+	 */
+	public Entry add(int seq, int length, TCPPacket packet, SegmentBuffer seg, long now) {
+		if (count == ring.length) {
+			Entry[] bigger = new Entry[ring.length * 2];
+			for (int i = 0; i < count; i++)
+				bigger[i] = get(i);
+			ring = bigger;
+			head = 0;
+		}
+
+		int slot = (head + count) & (ring.length - 1);
+		Entry e = ring[slot];
+		if (e == null)
+			e = ring[slot] = new Entry();
+		e.seq = seq;
+		e.length = length;
+		e.packet = packet;
+		e.seg = seg != null ? seg.retain() : null;
+		e.sentTime = now;
+		e.retransmits = 0;
+		e.lost = false;
+		count++;
+		return e;
+	}
+
+	public Entry get(int i) {
+		return ring[(head + i) & (ring.length - 1)];
+	}
+
+	/**
+	 * @return the oldest entry, or null if nothing is waiting for an ACK
+	 */
+	public Entry peek() {
+		return count > 0 ? get(0) : null;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * Removes every entry a cumulative ACK covers.
+	 *
+	 * @return the number removed
+	 */
+	public int ackTo(int ackNum) {
+		int n = 0;
+		while (count > 0 && get(0).end() - ackNum <= 0) {
+			removeHead();
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Removes every entry, acked or not.
+	 */
+	public void clear() {
+		while (count > 0)
+			removeHead();
+	}
+
+	private void removeHead() {
+		Entry e = get(0);
+		if (e.seg != null)
+			e.seg.release();
+		e.seg = null;
+		e.packet = null;
+		head = (head + 1) & (ring.length - 1);
+		count--;
+	}
+}
@@ -0,0 +1,104 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//---------------------------------------------------
+//
+// class SegmentBuffer
+//
+// one off-heap buffer big enough for a whole TCP segment, header
+// included, handed out by a SegmentPool.
+//
+// bytes [0, payloadStart) are the TCP header and [payloadStart,
+// payloadEnd) the data.  a segment being sent is filled from the
+// application's writes, gets its header written in place when it
+// goes out (see SendScheduler), and is sent (and resent) straight
+// from here.  a received segment is read into by the Demultiplexer and its
+// data is queued for the application without being copied.
+//
+// the buffer is reference counted: whoever keeps the segment past the
+// call that handed it over must retain() it, and every retain() (and
+// the allocation itself) is matched by a release().  the last
+// release() gives the buffer back to its pool.
+//
+//---------------------------------------------------
+class SegmentBuffer {
+
+	private final ByteBuffer buf;
+	private final SegmentPool pool;
+	private final AtomicInteger refCount = new AtomicInteger();
+
+	int payloadStart;
+	int payloadEnd;
+	int seq; // seq number of the first data byte, once it has been sent
+	volatile long sentTime; // TCPClock nanoTime it last went out, or TCPWrapper.QUEUED while it waits to
+
+	SegmentBuffer(ByteBuffer buf, SegmentPool pool) {
+		this.buf = buf;
+		this.pool = pool;
+	}
+
+	/**
+	 * @return the whole buffer. Callers use absolute gets and puts, or a
+	 *         duplicate(), so that its position and limit stay meaningless.
+	 */
+	public ByteBuffer buffer() {
+		return buf;
+	}
+
+	public int capacity() {
+		return buf.capacity();
+	}
+
+	public int payloadLength() {
+		return payloadEnd - payloadStart;
+	}
+
+	/**
+	 * @return room left after the data
+	 */
+	public int room() {
+		return buf.capacity() - payloadEnd;
+	}
+
+	/**
+	 * @return a buffer positioned over the header and data, ready to send
+	 */
+	public ByteBuffer wire() {
+		ByteBuffer b = buf.duplicate();
+		b.position(0).limit(payloadEnd);
+		return b;
+	}
+
+	/**
+	 * @return a buffer positioned over the data only
+	 */
+	public ByteBuffer payload() {
+		ByteBuffer b = buf.duplicate();
+		b.position(payloadStart).limit(payloadEnd);
+		return b;
+	}
+
+	/**
+	 * Called by the pool when the buffer is handed out.
+	 */
+	void reset(int headerLength) {
+		refCount.set(1);
+		payloadStart = headerLength;
+		payloadEnd = headerLength;
+		seq = 0;
+	}
+
+	public SegmentBuffer retain() {
+		if (refCount.getAndIncrement() <= 0)
+			throw new IllegalStateException("segment already released");
+		return this;
+	}
+
+	public void release() {
+		int left = refCount.decrementAndGet();
+		if (left == 0)
+			pool.free(this);
+		else if (left < 0)
+			throw new IllegalStateException("segment released too often");
+	}
+}
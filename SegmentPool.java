@@ -0,0 +1,112 @@
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+//---------------------------------------------------
+//
+// class SegmentPool
+//
+// hands out SegmentBuffers carved from large direct ByteBuffers
+// (slabs), and takes them back when their last reference is released.
+// slabs are never given back to the JVM, so once a run has warmed up,
+// sending and receiving allocate no buffer memory at all.
+//
+// there is one pool per segment size (see forSegmentSize()), shared
+// by everything that uses that size.  getDefault() is the pool for
+// segments of TCPPacket.MAX_PACKET_SIZE.
+//
+//---------------------------------------------------
+class SegmentPool {
+
+	// a segment holds the largest packet plus its 20 byte header
+	public static final int SEGMENT_SIZE = TCPPacket.MAX_PACKET_SIZE + 20;
+
+	private static final int SEGMENTS_PER_SLAB = 256;
+
+	private static final SegmentPool defaultPool = new SegmentPool(SEGMENT_SIZE);
+
+	private static final HashMap<Integer, SegmentPool> pools = new HashMap<Integer, SegmentPool>();
+
+	static {
+		pools.put(SEGMENT_SIZE, defaultPool);
+	}
+
+	private final int segmentSize;
+	private SegmentBuffer[] free = new SegmentBuffer[SEGMENTS_PER_SLAB];
+	private int freeCount;
+	private int totalCount;
+
+	SegmentPool(int segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+
+	public static SegmentPool getDefault() {
+		return defaultPool;
+	}
+
+	/**
+	 * @param segmentSize
+	 *            bytes in each segment, header included
+	 * @return the pool of segments of that size
+	 */
+	public static SegmentPool forSegmentSize(int segmentSize) {
+		synchronized (pools) {
+			SegmentPool pool = pools.get(segmentSize);
+			if (pool == null) {
+				pool = new SegmentPool(segmentSize);
+				pools.put(segmentSize, pool);
+			}
+			return pool;
+		}
+	}
+
+	/**
+	 * Takes a segment from the pool, growing it by a slab if it's empty.
+	 *
+	 * @return a segment with one reference, and an empty 20 byte header
+	 *         reserved in front of the data
+	 */
+	public SegmentBuffer allocate() {
+		SegmentBuffer seg;
+		synchronized (this) {
+			if (freeCount == 0)
+				addSlab();
+			seg = free[--freeCount];
+			free[freeCount] = null;
+		}
+		seg.reset(20);
+		return seg;
+	}
+
+	synchronized void free(SegmentBuffer seg) {
+		free[freeCount++] = seg;
+	}
+
+	/**
+	 * @return how many segments exist, in use or not
+	 */
+	public synchronized int getTotalCount() {
+		return totalCount;
+	}
+
+	/**
+	 * @return how many segments are waiting in the pool
+	 */
+	public synchronized int getFreeCount() {
+		return freeCount;
+	}
+
+	private void addSlab() {
+		ByteBuffer slab = ByteBuffer.allocateDirect(segmentSize * SEGMENTS_PER_SLAB);
+		totalCount += SEGMENTS_PER_SLAB;
+		if (free.length < totalCount) {
+			SegmentBuffer[] bigger = new SegmentBuffer[totalCount];
+			System.arraycopy(free, 0, bigger, 0, freeCount);
+			free = bigger;
+		}
+
+		for (int i = 0; i < SEGMENTS_PER_SLAB; i++) {
+			slab.limit((i + 1) * segmentSize).position(i * segmentSize);
+			free[freeCount++] = new SegmentBuffer(slab.slice(), this);
+		}
+	}
+}
@@ -0,0 +1,292 @@
+import java.nio.ByteBuffer;
+
+//---------------------------------------------------
+//
+// class SegmentQueue
+//
+// a byte stream held as a queue of pooled SegmentBuffers, used by
+// StudentSocketImpl for its send and receive sides.
+//
+// send side: the application's bytes are written straight into the
+// data area of segments, so each segment is already a ready-to-send
+// TCP segment.  the first sentCount() segments have been sent and are
+// waiting to be acked (the connection's RetransmissionQueue holds them
+// too, to send them again).  the rest are still open for more bytes.
+//
+// receive side: in-order segments from the Demultiplexer are queued as
+// they are (add()), and reads copy out of them and release them.
+//
+// none of these methods block, and none are synchronized: the socket
+// that owns the queue guards it with its own monitor.
+//
+//---------------------------------------------------
+class SegmentQueue {
+
+	private int capacity; // in data bytes
+	private SegmentPool pool; // where new segments come from; their size sets the largest segment
+
+	private SegmentBuffer[] ring = new SegmentBuffer[16];
+	private int head;
+	private int count;
+	private int bytes;
+	private int sentCount;
+
+	SegmentQueue(int capacity, SegmentPool pool) {
+		this.capacity = capacity;
+		this.pool = pool;
+	}
+
+	/**
+	 * @return the number of data bytes held, sent or not
+	 */
+	public int size() {
+		return bytes;
+	}
+
+	public int free() {
+		return capacity - bytes;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Changes the capacity. Data already queued stays, even past a smaller
+	 * one.
+	 */
+	public void setCapacity(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Makes new segments come from another pool, which sets the largest
+	 * segment built from now on. Send side only, before anything has been
+	 * sent: the data already queued is moved into segments from the new pool.
+	 */
+	public void setPool(SegmentPool pool) {
+		if (pool == this.pool)
+			return;
+		if (sentCount > 0)
+			throw new IllegalStateException("segments already sent");
+
+		byte[] unsent = new byte[bytes];
+		peek(unsent, 0, unsent.length);
+		discardUnsent(unsent.length);
+		this.pool = pool;
+		write(unsent, 0, unsent.length);
+	}
+
+	public int segmentCount() {
+		return count;
+	}
+
+	public SegmentBuffer get(int i) {
+		return ring[(head + i) & (ring.length - 1)];
+	}
+
+	/**
+	 * Appends as much of the array as fits, filling the last unsent segment
+	 * before starting new ones.
+	 *
+	 * @return the number of bytes appended
+	 */
+	public int write(byte[] src, int off, int len) {
+		return write(ByteBuffer.wrap(src, off, len));
+	}
+
+	/**
+	 * Appends as much of the buffer's remaining bytes as fits, advancing its
+	 * position past them.
+	 *
+	 * @return the number of bytes appended
+	 */
+	public int write(ByteBuffer src) {
+		int total = 0;
+		while (src.hasRemaining() && free() > 0) {
+			SegmentBuffer tail = count > sentCount ? get(count - 1) : null;
+			if (tail == null || tail.room() == 0) {
+				tail = pool.allocate();
+				push(tail);
+			}
+
+			int n = Math.min(src.remaining(), Math.min(tail.room(), free()));
+			ByteBuffer dst = tail.buffer().duplicate();
+			dst.position(tail.payloadEnd);
+			ByteBuffer chunk = src.duplicate();
+			chunk.limit(chunk.position() + n);
+			dst.put(chunk);
+			src.position(src.position() + n);
+
+			tail.payloadEnd += n;
+			bytes += n;
+			total += n;
+		}
+		return total;
+	}
+
+	/**
+	 * Queues a received segment's data. Small data is copied into the last
+	 * segment if it fits there, so that a stream of tiny segments doesn't pin
+	 * a whole buffer each; otherwise the segment itself is kept (retained).
+	 *
+	 * @param seg
+	 *            the segment, still owned by the caller
+	 */
+	public void add(SegmentBuffer seg) {
+		int len = seg.payloadLength();
+		SegmentBuffer tail = count > 0 ? get(count - 1) : null;
+		if (tail != null && tail.room() >= len) {
+			ByteBuffer dst = tail.buffer().duplicate();
+			dst.position(tail.payloadEnd);
+			dst.put(seg.payload());
+			tail.payloadEnd += len;
+		} else
+			push(seg.retain());
+		bytes += len;
+	}
+
+	/**
+	 * Removes and copies out the oldest bytes.
+	 *
+	 * @return the number of bytes read
+	 */
+	public int read(byte[] dst, int off, int len) {
+		ByteBuffer b = ByteBuffer.wrap(dst, off, len);
+		return read(b);
+	}
+
+	/**
+	 * Removes the oldest bytes into the buffer, up to its remaining space.
+	 *
+	 * @return the number of bytes read
+	 */
+	public int read(ByteBuffer dst) {
+		int total = 0;
+		while (count > 0 && dst.hasRemaining()) {
+			SegmentBuffer seg = get(0);
+			int n = Math.min(dst.remaining(), seg.payloadLength());
+			ByteBuffer src = seg.payload();
+			src.limit(src.position() + n);
+			dst.put(src);
+
+			seg.payloadStart += n;
+			bytes -= n;
+			total += n;
+			if (seg.payloadLength() == 0)
+				pop().release();
+		}
+		return total;
+	}
+
+	/**
+	 * Copies out the oldest bytes, leaving them in the queue.
+	 *
+	 * @return the number of bytes copied
+	 */
+	public int peek(byte[] dst, int off, int len) {
+		ByteBuffer b = ByteBuffer.wrap(dst, off, len);
+		for (int i = 0; i < count && b.hasRemaining(); i++) {
+			ByteBuffer src = get(i).payload();
+			src.limit(src.position() + Math.min(src.remaining(), b.remaining()));
+			b.put(src);
+		}
+		return b.position() - off;
+	}
+
+	/**
+	 * Drops the oldest bytes, none of which may have been sent. What is left
+	 * of a segment is moved up behind its header, where unsent data starts.
+	 *
+	 * @param n
+	 *            the number of bytes to drop
+	 */
+	public void discardUnsent(int n) {
+		while (n > 0 && count > 0) {
+			SegmentBuffer seg = get(0);
+			int len = seg.payloadLength();
+			if (n >= len) {
+				pop().release();
+				bytes -= len;
+				n -= len;
+				continue;
+			}
+
+			byte[] rest = new byte[len - n];
+			ByteBuffer b = seg.buffer().duplicate();
+			b.position(seg.payloadStart + n);
+			b.get(rest);
+			b.position(seg.payloadStart);
+			b.put(rest);
+			seg.payloadEnd -= n;
+			bytes -= n;
+			n = 0;
+		}
+	}
+
+	/**
+	 * @return the oldest segment not sent yet, or null
+	 */
+	public SegmentBuffer nextUnsent() {
+		return sentCount < count ? get(sentCount) : null;
+	}
+
+	/**
+	 * Moves nextUnsent() into the sent (retransmission) part of the queue. It
+	 * takes no more bytes from then on.
+	 */
+	public void markSent() {
+		sentCount++;
+	}
+
+	public int sentCount() {
+		return sentCount;
+	}
+
+	/**
+	 * Releases every sent segment that the acknowledgement covers completely.
+	 *
+	 * @param ackNum
+	 *            the next seq number the other side expects
+	 */
+	public void ackTo(int ackNum) {
+		while (sentCount > 0) {
+			SegmentBuffer seg = get(0);
+			if (seg.seq + seg.payloadLength() - ackNum > 0)
+				break;
+			bytes -= seg.payloadLength();
+			sentCount--;
+			pop().release();
+		}
+	}
+
+	/**
+	 * Releases every segment.
+	 */
+	public void clear() {
+		while (count > 0)
+			pop().release();
+		bytes = 0;
+		sentCount = 0;
+	}
+
+	private void push(SegmentBuffer seg) {
+		if (count == ring.length) {
+			SegmentBuffer[] bigger = new SegmentBuffer[ring.length * 2];
+			for (int i = 0; i < count; i++)
+				bigger[i] = get(i);
+			ring = bigger;
+			head = 0;
+		}
+		ring[(head + count) & (ring.length - 1)] = seg;
+		count++;
+	}
+
+	private SegmentBuffer pop() {
+		SegmentBuffer seg = ring[head];
+		ring[head] = null;
+		head = (head + 1) & (ring.length - 1);
+		count--;
+		return seg;
+	}
+}
@@ -0,0 +1,239 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+//---------------------------------------------------
+//
+// class SendScheduler
+//
+// where TCPWrapper's packets wait to go out.  a caller queues its
+// packet and returns; it never waits for a lock another connection
+// holds, for the rate limit, or for the console.  dedicated sender
+// threads take the packets off the queues and transmit them.
+//
+// every connection has a Flow of its own: a lock-free queue of its
+// packets, in the order it sent them.  a flow with packets waiting is
+// on the active list once.  the senders serve the active flows with
+// deficit round robin: each turn a flow gets a quantum more bytes of
+// credit and sends packets while its credit covers them, then goes to
+// the back of the list.  the quantum is the same for every flow, and
+// as big as the largest segment any of them can queue (see
+// setQuantum()), so that a flow never needs more than one turn for a
+// segment, and each gets the same bytes per round whatever its MSS.  a bulk sender with a full window thus gets
+// one segment's worth per round, while a connection with one ACK or
+// request to send waits for at most one packet from each other flow.
+//
+// only one sender serves a flow at a time, so a flow's packets go out
+// in order.  a flow holding more than FLOW_LIMIT packets drops what
+// is queued after that, like a router's per-flow queue limit; TCP
+// sends it again.
+//
+// a pooled segment is queued with a reference held on it and no
+// header; the header is written in front of its data by the sender,
+// just before it goes out, so a retransmission queued behind an
+// earlier copy doesn't overwrite that copy's header.
+//
+//---------------------------------------------------
+class SendScheduler {
+
+	//Credit a flow gets per round, until set otherwise: one full segment of the default size, header included
+	static final int QUANTUM = SegmentPool.SEGMENT_SIZE;
+
+	//Most packets a flow may have waiting
+	static final int FLOW_LIMIT = 64;
+
+	/**
+	 * The queue of one connection's packets.
+	 */
+	static class Flow {
+		private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+		private final AtomicBoolean active = new AtomicBoolean(); //On the active list, or being served
+		private final AtomicInteger queued = new AtomicInteger(); //Packets in the queue, against FLOW_LIMIT
+		private int deficit; //Only touched by the sender serving the flow
+	}
+
+	/**
+	 * One packet waiting to go out.
+	 */
+	private static class Entry {
+		final TCPPacket packet;
+		final ByteBuffer wire; //The whole packet, for one whose data is in an array
+		final SegmentBuffer seg; //Or the segment holding its data, with a reference held
+		final int length; //Bytes on the wire
+		final InetSocketAddress to;
+
+		Entry(TCPPacket packet, ByteBuffer wire, SegmentBuffer seg, int length, InetSocketAddress to) {
+			this.packet = packet;
+			this.wire = wire;
+			this.seg = seg;
+			this.length = length;
+			this.to = to;
+		}
+	}
+
+	private final TCPWrapper wrapper;
+	private final ConcurrentLinkedQueue<Flow> activeFlows = new ConcurrentLinkedQueue<Flow>();
+	private final Sender[] senders;
+	private final AtomicLong overflowCount = new AtomicLong();
+	private volatile int quantum = QUANTUM;
+
+	/**
+	 * Starts the sender threads.
+	 *
+	 * @param wrapper
+	 *            what transmits the packets
+	 * @param threads
+	 *            how many
+	 */
+	SendScheduler(TCPWrapper wrapper, int threads) {
+		this.wrapper = wrapper;
+		senders = new Sender[threads];
+		for (int i = 0; i < threads; i++) {
+			senders[i] = new Sender(i);
+			senders[i].start();
+		}
+	}
+
+	/**
+	 * Queues a packet whose data (if any) is in its data array. The packet
+	 * is written out now, so the caller may resend the same object later.
+	 */
+	public void send(Flow flow, TCPPacket packet, InetSocketAddress to) {
+		byte[] b = packet.getBufferPacket();
+		enqueue(flow, new Entry(packet, ByteBuffer.wrap(b), null, b.length, to));
+	}
+
+	/**
+	 * Queues a packet whose data is in a pooled segment, with the segment's
+	 * 20 byte header area free. The packet object must not be changed
+	 * afterwards: its header is written when it goes out.
+	 */
+	public void sendSegment(Flow flow, TCPPacket packet, SegmentBuffer seg, InetSocketAddress to) {
+		enqueue(flow, new Entry(packet, null, seg.retain(), seg.payloadEnd, to));
+	}
+
+	/**
+	 * Sets the credit every flow gets per round. It must be at least the
+	 * largest segment a flow can queue, header included.
+	 */
+	public void setQuantum(int bytes) {
+		quantum = bytes;
+	}
+
+	/**
+	 * @return how many packets were dropped because their flow's queue was
+	 *         full
+	 */
+	public long getOverflowCount() {
+		return overflowCount.get();
+	}
+
+	private void enqueue(Flow flow, Entry e) {
+		if (flow.queued.incrementAndGet() > FLOW_LIMIT) {
+			flow.queued.decrementAndGet();
+			overflowCount.incrementAndGet();
+			wrapper.sent(e.packet); //Lost on the way, as far as TCP can tell
+			if (e.seg != null)
+				e.seg.release();
+			return;
+		}
+		flow.queue.add(e);
+
+		if (flow.active.compareAndSet(false, true)) {
+			activeFlows.add(flow);
+			wakeSender();
+		}
+	}
+
+	/**
+	 * Unparks one idle sender, if there is one. A sender marks itself idle
+	 * before it looks at the active list a last time, so either it sees the
+	 * flow just added or it is seen here.
+	 */
+	private void wakeSender() {
+		for (Sender s : senders) {
+			if (s.idle) {
+				LockSupport.unpark(s);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Gives a flow its turn: a quantum of credit, spent on as many packets
+	 * as it covers. The flow goes back on the active list if it still has
+	 * packets, and is left off it otherwise.
+	 */
+	private void serve(Flow flow) {
+		flow.deficit += quantum;
+		Entry e;
+		while ((e = flow.queue.peek()) != null && e.length <= flow.deficit) {
+			flow.queue.poll();
+			flow.queued.decrementAndGet();
+			flow.deficit -= e.length;
+			transmit(e);
+		}
+
+		if (e != null) {
+			activeFlows.add(flow);
+			return;
+		}
+
+		//An empty flow keeps no credit. A packet queued after the last look finds it inactive and activates it,
+		//unless it comes between the two lines below, in which case it is taken care of here.
+		flow.deficit = 0;
+		flow.active.set(false);
+		if (!flow.queue.isEmpty() && flow.active.compareAndSet(false, true))
+			activeFlows.add(flow);
+	}
+
+	private void transmit(Entry e) {
+		ByteBuffer wire;
+		if (e.seg != null) {
+			e.packet.writeHeader(e.seg.buffer());
+			wire = e.seg.buffer().duplicate();
+			wire.position(0).limit(e.length);
+		} else
+			wire = e.wire;
+
+		try {
+			wrapper.transmit(e.packet, wire, e.to);
+		} finally {
+			if (e.seg != null)
+				e.seg.release();
+		}
+	}
+
+	/**
+	 * A sender thread: serves active flows until there are none, then parks
+	 * until a flow is activated.
+	 */
+	private class Sender extends Thread {
+		volatile boolean idle;
+
+		Sender(int n) {
+			super("TCPWrapper sender " + n);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Flow flow = activeFlows.poll();
+				if (flow != null) {
+					serve(flow);
+					continue;
+				}
+
+				idle = true;
+				if (activeFlows.isEmpty())
+					LockSupport.park(this);
+				idle = false;
+			}
+		}
+	}
+}
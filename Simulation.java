@@ -0,0 +1,363 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.TimerTask;
+
+//---------------------------------------------------
+//
+// class Simulation
+//
+// runs the stack on one thread, against a virtual clock and an
+// in-memory network, so that runs are fast and repeatable.
+//
+// a Simulation has a TCPStack of its own, whose TCPClock is the
+// Simulation and whose TCPWrapper sends into it.  a sent packet and a timer are both just
+// events in one queue, ordered by virtual time (and by when they were
+// queued, for events at the same time).  step() takes the next event,
+// moves the clock to it and runs it: a packet is handed to the
+// Demultiplexer, a timer task is run.  nothing waits in real time, so
+// a 30 second TIME_WAIT costs nothing.
+//
+// the network delivers every datagram after a fixed latency plus a
+// random jitter (which can reorder them), and loses each with a fixed
+// probability.  all randomness comes from the seed, so the same seed
+// runs the same events in the same order.
+//
+// there is one host: the stack's Demultiplexer, given by
+// getDemultiplexer(), receives everything, and both ends of a
+// connection use it, as with TCPStart on one machine.  nothing is
+// shared with other stacks, so simulations can run in parallel, one
+// per thread.  code driving a simulation must use the
+// non-blocking calls of StudentSocketImpl (startConnect(),
+// startAccept(), read(), write(), startClose()) - anything that waits
+// would wait forever, since it would be holding the only thread.
+//
+// run "java Simulation <seed> <connections> <lossRate>" for a run of
+// whole connection lifecycles; see main().
+//
+//---------------------------------------------------
+class Simulation extends TCPClock {
+
+	// no UDP is used, but TCPWrapper still works out a port number
+	private static final int UDP_PORT = 1;
+
+	/**
+	 * Something to run at a virtual time.
+	 */
+	private static class Event implements Comparable<Event> {
+		final long time;
+		final long order;
+		final SimTimer timer; //null for a datagram
+		final Runnable action;
+
+		Event(long time, long order, SimTimer timer, Runnable action) {
+			this.time = time;
+			this.order = order;
+			this.timer = timer;
+			this.action = action;
+		}
+
+		public int compareTo(Event e) {
+			if (time != e.time)
+				return time < e.time ? -1 : 1;
+			return Long.compare(order, e.order);
+		}
+	}
+
+	/**
+	 * A TCPClock.Timer whose tasks are events.
+	 */
+	private class SimTimer implements TCPClock.Timer {
+		boolean cancelled;
+
+		public void schedule(TimerTask task, long delay) {
+			if (cancelled)
+				throw new IllegalStateException("Timer already cancelled.");
+			Simulation.this.schedule(delay, this, task);
+		}
+
+		public void cancel() {
+			cancelled = true;
+		}
+	}
+
+	private final Random random;
+	private final double lossRate;
+	private final long latency;
+	private final int jitter;
+	private final TCPStack stack;
+	private final Demultiplexer D;
+
+	private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+	private long now;
+	private long order;
+
+	private long sentCount;
+	private long lostCount;
+	private long traceHash = 0xcbf29ce484222325L;
+
+	/**
+	 * @param seed
+	 *            seed of every random choice
+	 * @param lossRate
+	 *            probability that a datagram is lost
+	 * @param latency
+	 *            one way delay of the network, in milliseconds
+	 * @param jitter
+	 *            most extra delay added to a datagram at random, in
+	 *            milliseconds
+	 */
+	Simulation(long seed, double lossRate, long latency, int jitter) {
+		this.random = new Random(seed);
+		this.lossRate = lossRate;
+		this.latency = latency;
+		this.jitter = jitter;
+
+		stack = new TCPStack(this, UDP_PORT, UDP_PORT, 1);
+		stack.getWrapper().setSimulation(this);
+		D = stack.getDemultiplexer(); //Never started; the network hands it datagrams
+		D.setPortRandom(new Random(random.nextLong()));
+	}
+
+	public TCPStack getStack() {
+		return stack;
+	}
+
+	public Demultiplexer getDemultiplexer() {
+		return D;
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return now;
+	}
+
+	@Override
+	public long nanoTime() {
+		return now * 1000000;
+	}
+
+	@Override
+	public TCPClock.Timer newTimer() {
+		return new SimTimer();
+	}
+
+	/**
+	 * Called by TCPWrapper for every packet sent: loses it, or queues its
+	 * delivery. The datagram is copied, since the sender may reuse its buffer.
+	 *
+	 * @param datagram
+	 *            the packet, from position to limit
+	 * @param to
+	 *            where it is sent
+	 */
+	void send(ByteBuffer datagram, InetSocketAddress to) {
+		sentCount++;
+		if (random.nextDouble() < lossRate) {
+			lostCount++;
+			return;
+		}
+
+		final int length = datagram.remaining();
+		final SegmentBuffer seg = D.getSegmentPool().allocate();
+		ByteBuffer b = seg.buffer().duplicate();
+		b.clear();
+		b.put(datagram.duplicate());
+
+		final InetAddress from = to.getAddress(); //One host: it comes from where it goes
+		long delay = latency + (jitter > 0 ? random.nextInt(jitter + 1) : 0);
+		schedule(delay, null, () -> deliver(seg, length, from));
+	}
+
+	private void deliver(SegmentBuffer seg, int length, InetAddress from) {
+		//Everything delivered, and when, goes into the trace hash: equal hashes mean equal runs
+		trace(now);
+		ByteBuffer b = seg.buffer();
+		for (int i = 0; i < length; i++)
+			trace(b.get(i));
+
+		D.receiveDatagram(seg, length, from);
+	}
+
+	private void trace(long v) {
+		traceHash = (traceHash ^ v) * 0x100000001b3L;
+	}
+
+	private void schedule(long delay, SimTimer timer, Runnable action) {
+		events.add(new Event(now + delay, order++, timer, action));
+	}
+
+	/**
+	 * Runs the next event, moving the clock forward to it.
+	 *
+	 * @return false if there was nothing left to run
+	 */
+	public boolean step() {
+		Event e;
+		do {
+			e = events.poll();
+			if (e == null)
+				return false;
+		} while (e.timer != null && e.timer.cancelled);
+
+		now = e.time;
+		e.action.run();
+		return true;
+	}
+
+	public long getSentCount() {
+		return sentCount;
+	}
+
+	public long getLostCount() {
+		return lostCount;
+	}
+
+	/**
+	 * @return a hash of every datagram delivered so far and the time it was
+	 *         delivered at. Two runs from the same seed give the same hash.
+	 */
+	public long getTraceHash() {
+		return traceHash;
+	}
+
+	/**
+	 * One connection, driven from open to closed: the client connects, sends
+	 * its data and closes, and the server reads it all, checks it, and closes
+	 * when it sees the client's FIN.
+	 */
+	private static class Lifecycle {
+		final StudentSocketImpl client;
+		final StudentSocketImpl server;
+		final byte[] data;
+		final ByteBuffer toSend;
+		final ByteBuffer readBuf = ByteBuffer.allocate(4096);
+		final long started;
+		int received;
+		boolean corrupt;
+		boolean serverClosing;
+
+		Lifecycle(Demultiplexer D, int port, byte[] data, long now) throws IOException {
+			this.data = data;
+			toSend = ByteBuffer.wrap(data);
+			started = now;
+
+			server = new StudentSocketImpl(D);
+			server.startAccept(port);
+			client = new StudentSocketImpl(D);
+			client.startConnect(InetAddress.getLoopbackAddress(), port);
+		}
+
+		/**
+		 * Does whatever the connection is ready for.
+		 *
+		 * @return true once both ends are closed
+		 */
+		boolean poll() throws IOException {
+			if (toSend.hasRemaining() && client.isWritable()) {
+				client.write(toSend);
+				if (!toSend.hasRemaining())
+					client.startClose();
+			}
+
+			while (!serverClosing && server.isReadable()) {
+				readBuf.clear();
+				int n = server.read(readBuf);
+				if (n < 0) {
+					server.startClose();
+					serverClosing = true;
+					break;
+				}
+				for (int i = 0; i < n; i++)
+					if (received + i >= data.length || readBuf.get(i) != data[received + i])
+						corrupt = true;
+				received += n;
+			}
+
+			return serverClosing && client.getState() == StudentSocketImpl.State.CLOSED
+					&& server.getState() == StudentSocketImpl.State.CLOSED;
+		}
+
+		boolean isIntact() {
+			return !corrupt && received == data.length;
+		}
+	}
+
+	/**
+	 * Runs connection lifecycles, several at a time, each with its own server
+	 * port, and reports how they went. Packet tracing is off unless VERBOSE is
+	 * set.
+	 *
+	 * usage: java Simulation seed connections lossRate [concurrent [bytes]]
+	 */
+	public static void main(String[] argv) throws IOException {
+		if (argv.length < 3) {
+			System.err.println("usage: java Simulation <seed> <connections> <lossRate> [<concurrent> [<bytes>]]");
+			System.exit(1);
+		}
+		long seed = Long.parseLong(argv[0]);
+		int connections = Integer.parseInt(argv[1]);
+		double lossRate = Double.parseDouble(argv[2]);
+		int concurrent = argv.length > 3 ? Integer.parseInt(argv[3]) : 16;
+		int bytes = argv.length > 4 ? Integer.parseInt(argv[4]) : 4000;
+
+		//A connection that hasn't finished after this much virtual time is given up on
+		final long lifecycleLimit = 10 * 60 * 1000;
+
+		PrintStream console = System.out;
+		if (!Boolean.getBoolean("VERBOSE"))
+			System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+		Simulation sim = new Simulation(seed, lossRate, 10, 5);
+
+		Random dataRandom = new Random(seed);
+		Lifecycle[] slots = new Lifecycle[concurrent];
+		int started = 0, completed = 0, failed = 0;
+		long lifecycleTotal = 0;
+		long realStart = System.nanoTime();
+
+		while (completed + failed < connections) {
+			for (int i = 0; i < slots.length; i++) {
+				Lifecycle c = slots[i];
+				if (c == null) {
+					if (started == connections)
+						continue;
+					byte[] data = new byte[bytes];
+					dataRandom.nextBytes(data);
+					slots[i] = new Lifecycle(sim.getDemultiplexer(), 5000 + i, data, sim.currentTimeMillis());
+					started++;
+				} else if (c.poll()) {
+					if (c.isIntact()) {
+						completed++;
+						lifecycleTotal += sim.currentTimeMillis() - c.started;
+					} else
+						failed++;
+					slots[i] = null;
+				} else if (sim.currentTimeMillis() - c.started > lifecycleLimit) {
+					failed++;
+					slots[i] = null;
+				}
+			}
+
+			//Every connection has just been polled, so with nothing left to run, nothing can change
+			if (completed + failed < connections && !sim.step()) {
+				console.println("simulation stalled with connections still open");
+				failed += connections - completed - failed;
+			}
+		}
+
+		long realMillis = (System.nanoTime() - realStart) / 1000000;
+		console.println("connections: " + completed + " completed, " + failed + " failed");
+		console.println("virtual time: " + sim.currentTimeMillis() + " ms, real time: " + realMillis + " ms");
+		console.println("packets: " + sim.getSentCount() + " sent, " + sim.getLostCount() + " lost");
+		if (completed > 0)
+			console.println("mean lifecycle: " + lifecycleTotal / completed + " ms virtual");
+		console.println("trace hash: " + Long.toHexString(sim.getTraceHash()));
+		System.exit(failed == 0 ? 0 : 1);
+	}
+}
@@ -1,5 +1,6 @@
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 class StudentSocketImpl extends BaseSocketImpl {
@@ -14,23 +15,140 @@ class StudentSocketImpl extends BaseSocketImpl {
 		CLOSED, LISTEN, SYN_SENT, SYN_RCVD, ESTABLISHED, FIN_WAIT_1, CLOSE_WAIT, FIN_WAIT_2, LAST_ACK, TIME_WAIT, CLOSING
 	}
 
+	//Congestion control a connection can use
+	enum CongestionControl {
+		NONE, //Only the other side's window limits what is in flight
+		BBR //Bbr: a model of the path, from DeliveryRate
+	}
+
 	private Demultiplexer D;
-	private Timer tcpTimer;
+	private final TCPWrapper wrapper; //The transport and clock of D's stack
+	private final TCPClock clock;
+	private TCPClock.Timer tcpTimer; //Made when first needed, kept until the connection closes
+	private TCPTimerTask timerTask; //The timer running on tcpTimer, if any
 	private State state;
 	private int seq; //Local seq number
 	private InetAddress connectedAddr; //Address of other side of TCP connection
 	private int connectedPort; //Port number of other side of TCP connection
 	private int connectedSeq; //Current sequence number of other side of TCP connection
-	private TCPPacket lastPack; //The last non-ack packet sent (saved in case it is dropped)
-	private TCPPacket lastAck;	//The last ack packet sent (saved in case it is dropped)
+	private final RetransmissionQueue retransmissions = new RetransmissionQueue(); //Sent and unacked: SYN, data, FIN
+
+	private SegmentQueue sendQueue; //Segments written by the application, from sendBase on (unacked, then unsent)
+	private SegmentQueue recvQueue; //Segments received in order that the application hasn't read yet
+	private int sendBase; //Oldest unacknowledged seq number; seq is the next one to send
+	private int recvNext; //Next seq number expected from the other side
+	private int peerWindow; //Window last advertised by the other side
+	private int advertisedEdge; //Right edge of the window last advertised: recvNext plus the window
+	private boolean peerClosed; //A FIN has been received; no more data will arrive
+	private boolean closeRequested; //close() was called; the FIN goes out once the send buffer drains
+	private boolean persisting; //The running timer is the persist timer, probing a window too small to send into
+	private boolean fastOpen; //Fast Open: data may be written (and, on a server, read) before the handshake is done
+	private boolean synDeferred; //Fast Open: connect() returned without sending the SYN; it goes with the first data
+	private int synDataLength; //Bytes of data carried by our SYN
+	private Compression.Codec codec; //Compresses the stream both ways, once agreed on in the handshake; null if not
+	private int mss; //Most data in a segment: ours until the other side's MSS option is in, then the smaller of the two
+	private int swsThreshold; //Window growth worth advertising: a full segment, or half the buffer if less
+	private long persistTimeout = RTO; //Delay before the next window probe; doubles with each one
+
+	private InputStream appIS;
+	private OutputStream appOS;
+
+	private boolean inBatch; //Handling a batch of packets; ACKs and new data wait until the end of it
+	private boolean ackPending; //An ACK is owed once the batch is done
+	private boolean transmitPending; //The window may have opened; send once the batch is done
+	private SegmentBuffer[] burst = new SegmentBuffer[16]; //Segments handed to TCPWrapper in one sendSegments() call
+	private final SendScheduler.Flow sendFlow = new SendScheduler.Flow(); //This connection's queue of packets to send
+
+	private long segmentsSent; //Data segments sent for the first time
+	private long segmentsRetransmitted; //Data segments sent again
+	private final LatencyHistogram rttHistogram = new LatencyHistogram(); //Round trip times, in microseconds
+	private long srtt; //Smoothed round trip time, in nanoseconds; 0 until one has been measured
+	private long rttvar; //Round trip time variation, in nanoseconds
+	private long rto = RTO; //Retransmission timeout from srtt and rttvar, in milliseconds, before backing off
+	private int rtoBackoff; //Timeouts since the last new ACK; each one doubles the retransmission timeout
+	private long lastSendTime; //nanoTime anything in the retransmission queue was last sent
+
+	//RACK: the most recently sent segment known to have been delivered. Times are when segments went out on the wire.
+	private long rackXmitTime; //When it last went out; 0 until one is known
+	private int rackEndSeq;
+	private long rackRtt; //The round trip it measured, in nanoseconds; 0 until one has been measured
+	private long rackMinRtt; //Shortest of those, for the reordering window
+	private long reorderAt; //nanoTime the reordering timer is due; 0 if nothing waits for it
+	private boolean probeSent; //A tail loss probe (or a timeout) has gone out since the last new ACK
+
+	private CongestionControl congestionControl; //Takes effect when the connection opens
+	private Bbr bbr; //Null unless the connection uses BBR
+	private DeliveryRate deliveryRate; //Kept for bbr
+
+	private long paceNext; //nanoTime the next data segment may leave at
+	private boolean paceWaiting; //The pacer will call paceDue() when that time comes
+
+	private boolean wakeWaiters; //Something threads wait on (state, send space) changed while handling packets
+	private boolean recvPushed; //The receive queue ends a burst (a short segment, or the window is nearly full)
+	private int readWant; //Bytes a blocked stream reader wants before it is woken; 0 if no reader is waiting
+
+	//Called after anything that may change what the socket is ready for. Used by TCPChannel.
+	private Runnable readinessListener;
+
+	//Capacity of each of the send and receive buffers, at least. Must fit the 16 bit window field.
+	static final int BUFFER_SIZE = 32 * 1024;
+
+	//With large segments the buffers grow to hold this many, as far as the 16 bit window field allows
+	static final int BUFFER_SEGMENTS = 16;
+	static final int MAX_WINDOW = 65535;
+
+	//Retransmission timeout until a round trip has been measured, in milliseconds
+	static final long RTO = 1000;
+
+	//Bounds of the retransmission timeout, in milliseconds. The backoff stops well short of RFC 6298's minute: over a
+	//lossy path, a FIN and the answer to it can each need many tries, and a minute apart they take most of an hour.
+	static final long RTO_MIN = 1000;
+	static final long RTO_MAX = 10 * 1000;
+
+	//Shortest wait before a tail loss probe, in milliseconds. Timers run to the millisecond, and a probe sooner
+	//than this would go out on scheduling delays alone.
+	static final long PTO_MIN = 10;
+
+	//Longest delay between window probes, in milliseconds
+	static final long PERSIST_MAX = 60 * 1000;
+
+	//Pacing spaces a window's segments over 100/PACING_GAIN of a round trip, so the ACKs of one window arrive
+	//before the next is due and pacing alone never holds the window back
+	static final int PACING_GAIN = 125;
+
+	//Sending credit a connection may build up while idle or while its pacer callback is late (timers run to the
+	//millisecond), in nanoseconds. Bounds the burst that can leave at once.
+	static final long PACING_BURST = 1000 * 1000;
+
+	//handleTimer() references of the persist, tail loss probe and RACK reordering timers (the RTO's is null)
+	private static final Object PERSIST = new Object();
+	private static final Object PROBE = new Object();
+	private static final Object REORDER = new Object();
+
+	//A blocked stream reader is woken once this much data has coalesced (or less, if it asked for less)...
+	static final int COALESCE_BYTES = 16 * 1024;
+	//...or once this long has passed since the first byte arrived, in milliseconds
+	static final long COALESCE_MILLIS = 10;
 	
+	//How long a closed connection stays in TIME_WAIT, in milliseconds
+	static final long TIME_WAIT_LENGTH = 30 * 1000;
+
 	//Used to print state transitions. The string representation of the state is at the index corresponding to it's partner's ordinal in the State enum
 	private final String[] stateText = { "CLOSED", "LISTEN", "SYN_SENT", "SYN_RCVD", "ESTABLISHED", "FIN_WAIT_1",
 			"CLOSE_WAIT", "FIN_WAIT_2", "LAST_ACK", "TIME_WAIT", "CLOSING" };
 
 	StudentSocketImpl(Demultiplexer D) { // default constructor
 		this.D = D;
+		wrapper = D.getWrapper();
+		clock = D.getClock();
 		state = State.CLOSED; //Init to closed
+		congestionControl = D.getCongestionControl();
+		mss = D.getMaxSegmentSize();
+		swsThreshold = Math.min(mss, BUFFER_SIZE / 2);
+		sendQueue = new SegmentQueue(BUFFER_SIZE, D.getSegmentPool());
+		recvQueue = new SegmentQueue(BUFFER_SIZE, D.getSegmentPool());
+		appIS = new SocketInputStream();
+		appOS = new SocketOutputStream();
 	}
 
 	/**
@@ -45,17 +163,16 @@ class StudentSocketImpl extends BaseSocketImpl {
 	 */
 	@Override
 	public synchronized void connect(InetAddress address, int port) throws IOException {
-		localport = D.getNextAvailablePort();
-		seq = 5; //Arbitrary starting seq number
-		
-		connectedAddr = address;
-
-		D.registerConnection(address, this.localport, port, this);
-		TCPPacket syn = new TCPPacket(this.localport, port, seq, 8, false, true, false, 5, null);
+		//With a Fast Open cookie for the server, return now: the SYN waits for the first write, and carries it
+		FastOpen fo = D.getFastOpen();
+		if (fo != null && fo.getCachedCookie(address) != null) {
+			prepareConnect(address, port);
+			fastOpen = true;
+			synDeferred = true;
+			return;
+		}
 
-		sendPacket(syn, connectedAddr); //Send syn packet to initiate three-way handshake
-		
-		printTransition(State.CLOSED, State.SYN_SENT); //After sending syn, state transition
+		startConnect(address, port);
 
 		//This thread will sleep until the requisite packets are received to transition to ESTABLISHED.
 		//When it wakes up, the function will return.
@@ -68,6 +185,67 @@ class StudentSocketImpl extends BaseSocketImpl {
 		}
 	}
 
+	/**
+	 * Sends the SYN that starts a connection, without waiting for the
+	 * handshake to finish.
+	 *
+	 * @param address
+	 *            the IP address of the remote host.
+	 * @param port
+	 *            the port number.
+	 * @exception IOException
+	 *                if an I/O error occurs when attempting a connection.
+	 */
+	public synchronized void startConnect(InetAddress address, int port) throws IOException {
+		prepareConnect(address, port);
+		sendSyn();
+	}
+
+	/**
+	 * Picks the local port and starting seq number of a connection, and
+	 * registers it with the Demultiplexer, ready for the SYN.
+	 */
+	private void prepareConnect(InetAddress address, int port) throws IOException {
+		localport = D.getNextAvailablePort();
+		//Clock driven starting seq number, so that a new SYN reusing a 4-tuple still in TIME_WAIT is always beyond the old connection
+		seq = (int) (clock.nanoTime() >>> 12);
+		
+		connectedAddr = address;
+		connectedPort = port;
+
+		D.registerConnection(address, this.localport, port, this);
+	}
+
+	/**
+	 * Sends the SYN to initiate the three-way handshake. With Fast Open, it asks
+	 * the server for a cookie, or if we have one, carries it and as much of
+	 * the data written so far as fits. That data stays in the send queue until
+	 * the SYN+ACK says whether the server took it.
+	 */
+	private void sendSyn() {
+		synDeferred = false;
+
+		FastOpen fo = D.getFastOpen();
+		byte[] cookie = fo == null ? null : fo.getCachedCookie(connectedAddr);
+		byte[] data = null;
+		if (cookie != null && sendQueue.size() > 0) {
+			data = new byte[Math.min(sendQueue.size(), fo.maxSynData(connectedAddr, mss))];
+			sendQueue.peek(data, 0, data.length);
+			synDataLength = data.length;
+		}
+
+		TCPPacket syn = new TCPPacket(this.localport, connectedPort, seq, 8, false, true, false, advertisedWindow(), data);
+		syn.addMss(mss);
+		if (fo != null)
+			syn.addOption(FastOpen.OPTION_KIND, cookie != null ? cookie : new byte[0]); //Empty: asks for a cookie
+		if (D.getCompression() != null && data == null && !fastOpen) //Data before the answer would go uncompressed
+			syn.addOption(Compression.OPTION_KIND, new byte[0]);
+
+		sendPacket(syn, connectedAddr); //Send syn packet to initiate three-way handshake
+		
+		printTransition(State.CLOSED, State.SYN_SENT); //After sending syn, state transition
+	}
+
 	/**
 	 * Called by Demultiplexer when a packet comes in for this connection
 	 * 
@@ -75,9 +253,73 @@ class StudentSocketImpl extends BaseSocketImpl {
 	 *            The packet that arrived
 	 */
 	public synchronized void receivePacket(TCPPacket p) {
+		handlePacket(p);
+		packetsDone();
+	}
+
+	/**
+	 * Called by Demultiplexer with every packet for this connection from one
+	 * batch of received datagrams, in the order they arrived. The packets are
+	 * handled one by one, but the cumulative ACK and window update, and any
+	 * data the ACKs allow out, are sent once for the whole batch.
+	 * 
+	 * @param batch
+	 *            The packets that arrived
+	 */
+	public synchronized void receivePackets(List<TCPPacket> batch) {
+		inBatch = true;
+		try {
+			for (TCPPacket p : batch)
+				handlePacket(p);
+		} finally {
+			inBatch = false;
+		}
+
+		if (transmitPending) {
+			transmitPending = false;
+			transmitData(); //Data segments carry the ACK too
+		}
+		if (ackPending) {
+			ackPending = false;
+			if (state != State.CLOSED)
+				sendAck();
+		}
+
+		packetsDone();
+	}
+
+	/**
+	 * Wakes up anything waiting on this socket after packets have been handled.
+	 */
+	private void packetsDone() {
+		//Wake up any threads that may be waiting on a particular state transition, on send space, or for
+		//enough coalesced data. A reader waiting for more data than has arrived is left to sleep.
+		if (wakeWaiters || (readWant > 0 && (readable() >= readWant || recvPushed || peerClosed)))
+			this.notifyAll();
+		wakeWaiters = false;
+
+		notifyReadiness();
+	}
+
+	/**
+	 * Runs the state machine for one received packet.
+	 * 
+	 * @param p
+	 *            The packet that arrived
+	 */
+	private void handlePacket(TCPPacket p) {
 
 		TCPPacket response;
 
+		//A reset: the other side has no such connection (see Demultiplexer). Only one that acks our FIN, after theirs
+		//came, is acted on: they got everything, and forgot the connection when their TIME_WAIT ran out before an
+		//ACK of our FIN got through. Retransmitting the FIN to them would go on forever.
+		if (p.rstFlag) {
+			if ((state == State.LAST_ACK || state == State.CLOSING) && isFinAck(p))
+				closeNow();
+			return;
+		}
+
 		switch (state) {
 		case LISTEN:
 			if (!p.synFlag || p.ackFlag) //Garbage packet
@@ -89,8 +331,37 @@ class StudentSocketImpl extends BaseSocketImpl {
 			seq = p.ackNum;
 			connectedSeq = p.seqNum;
 			connectedAddr = p.sourceAddr;
+			mss = Math.min(mss, p.getMss());
 
-			response = new TCPPacket(localport, p.sourcePort, seq, connectedSeq + 1, true, true, false, 5, null); //SYN+ACK in response to SYN
+			//Fast Open: data under a good cookie is taken now, and acked by the SYN+ACK. Anything else gets a cookie.
+			FastOpen fo = D.getFastOpen();
+			byte[] cookie = fo == null ? null : p.getOption(FastOpen.OPTION_KIND);
+			byte[] issue = null;
+			if (cookie != null && fo.isValid(p.sourceAddr, cookie)) {
+				int len = p.getDataLength();
+				if (len > 0 && len <= recvQueue.free()) {
+					if (p.getSegment() != null)
+						recvQueue.add(p.getSegment());
+					else
+						recvQueue.write(p.data, 0, len);
+					recvPushed = true;
+					connectedSeq += len;
+				}
+				fastOpen = true; //accept() returns now, with the data ready to read
+			} else if (cookie != null)
+				issue = fo.cookieFor(p.sourceAddr);
+
+			response = new TCPPacket(localport, p.sourcePort, seq, connectedSeq + 1, true, true, false, advertisedWindow(), null); //SYN+ACK in response to SYN
+			response.addMss(D.getMaxSegmentSize());
+			if (issue != null)
+				response.addOption(FastOpen.OPTION_KIND, issue);
+
+			//Compression, if the SYN asks for it (and has no data sent before the answer) and we have it. A Fast Open
+			//server may write as soon as accept() returns.
+			if (D.getCompression() != null && p.getOption(Compression.OPTION_KIND) != null && p.getDataLength() == 0) {
+				response.addOption(Compression.OPTION_KIND, new byte[0]);
+				codec = D.getCompression().newCodec();
+			}
 
 			sendPacket(response, connectedAddr);
 			printTransition(state, State.SYN_RCVD);
@@ -108,91 +379,91 @@ class StudentSocketImpl extends BaseSocketImpl {
 		case ESTABLISHED:
 			//Receiving a SYN+ACK in this state indicates a dropped ack, resend it
 			if (p.ackFlag && p.synFlag) 
-				sendPacket(lastAck, connectedAddr);
+				sendAck();
 	
 			
 			else if(p.finFlag){
-				seq = p.ackNum; //Update seq on FIN and SYN
-				response = new TCPPacket(localport, p.sourcePort, -2, connectedSeq + 1, true, false, false, 5, null); //ACK for fin
-				sendPacket(response, connectedAddr);
+				if (!receiveFin(p))
+					break;
 	
 				printTransition(state, State.CLOSE_WAIT);
 			}
+
+			else
+				receiveData(p);
 			
 			break;
 
 		case FIN_WAIT_1:
 			//Receiving a SYN+ACK in this state indicates a dropped ack, followed by a close(). Resend the ack
 			if (p.ackFlag && p.synFlag)
-				sendPacket(lastAck, connectedAddr);
+				sendAck();
 			
 			//Ack for fin
-			else if (p.ackFlag){
+			else if (isFinAck(p)){
 				printTransition(state, State.FIN_WAIT_2);
-				tcpTimer.cancel(); //Cancel timer for the fin being acked
-				tcpTimer = null;
+				retransmissions.ackTo(p.ackNum); //The fin is acked
+				armRetransmitTimer();
+
+				if (p.getDataLength() > 0) //The other side may still be sending data
+					receiveData(p);
 			}
 			
 			//Transition to CLOSING state, received fin before ack
 			else if (p.finFlag) {
-				seq = p.ackNum;
-				connectedSeq = p.seqNum;
-
-				response = new TCPPacket(localport, p.sourcePort, -2, connectedSeq + 1, true, false, false, 5, null); //Ack for fin
-
-				sendPacket(response, connectedAddr);
-
-				printTransition(state, State.CLOSING);
+				if (receiveFin(p))
+					printTransition(state, State.CLOSING);
 			}
 
+			//The other side may still be sending data
+			else
+				receiveData(p);
+
 			break;
 			
 		case FIN_WAIT_2:
-			if (!p.finFlag) //Garbage packet
+			//The other side may still be sending data
+			if (!p.finFlag) {
+				receiveData(p);
 				break;
+			}
 			
 			//FIN received
-			
-			seq = p.ackNum;
-			
-			response = new TCPPacket(localport, p.sourcePort, -2, connectedSeq + 1, true, false, false, 5, null); //Ack for fin
-			
-			sendPacket(response, connectedAddr);
-
-			printTransition(state, State.TIME_WAIT);
-
-			createTimerTask(30 * 1000, null); //TIME_WAIT 30 second timer
+			if (receiveFin(p))
+				enterTimeWait();
 
 			break;
 			
 		case LAST_ACK:
 			//A FIN in this state indicates a dropped ack. Resend it.
 			if (p.finFlag)
-				sendPacket(lastAck, connectedAddr);
+				sendAck();
 			
-			if (p.ackFlag){
-				tcpTimer.cancel(); //Cancel timer for previously sent fin
-				tcpTimer = null;
-				
-				printTransition(state, State.TIME_WAIT);
-				createTimerTask(30 * 1000, null); //TIME_WAIT 30 second timer
+			if (isFinAck(p)){
+				retransmissions.ackTo(p.ackNum); //The fin is acked
+				enterTimeWait();
 			}
 
 			break;
 			
 		case SYN_RCVD:
 			//A SYN in this state indicates a dropped SYN+ACK. Resend it.
-			//(The SYN+ACK is saved as a lastPack rather than lastAck; no difference, arbitrarily chosen)
 			if (!p.ackFlag && p.synFlag)
-				this.sendPacket(lastPack, connectedAddr);
+				retransmit();
 			
 			else if (p.ackFlag){
-				tcpTimer.cancel(); //Cancel timer for sent SYN+ACK
-				tcpTimer = null;
+				retransmissions.clear(); //The SYN+ACK is acked
+				cancelTimer();
+				rtoBackoff = 0;
 				
+				seq = p.ackNum; //Our SYN takes up one seq number
 				connectedPort = p.sourcePort;
+				startDataTransfer(p.windowSize);
 	
 				printTransition(state, State.ESTABLISHED);
+
+				//If the handshake ACK was dropped, this is the first data segment, which acks our SYN+ACK as well
+				receiveData(p);
 			}
 			
 			break;
@@ -203,43 +474,62 @@ class StudentSocketImpl extends BaseSocketImpl {
 			
 			//SYN+ACK received 
 			
-			tcpTimer.cancel(); //Cancel timer for sent SYN
-			tcpTimer = null;
+			retransmissions.clear(); //The SYN is acked, whether or not the data it carried was taken
+			cancelTimer();
+			rtoBackoff = 0;
+
+			//Fast Open: keep a new cookie, and drop whatever of our SYN's data was acked. The rest goes out as usual.
+			byte[] issued = p.getOption(FastOpen.OPTION_KIND);
+			if (D.getFastOpen() != null && issued != null && issued.length > 0)
+				D.getFastOpen().cacheCookie(connectedAddr, issued, p.getMss());
+			int synAcked = Math.max(0, Math.min(p.ackNum - (seq + 1), synDataLength));
+			sendQueue.discardUnsent(synAcked);
 			
-			seq = p.ackNum;
+			seq += 1 + synAcked;
 			connectedSeq = p.seqNum;
+			mss = Math.min(mss, p.getMss());
 
-			response = new TCPPacket(localport, p.sourcePort, -2, p.seqNum + 1, true, false, false, 5, null); //Ack for received SYN+ACK
+			//The server only agrees to compression our SYN asked for
+			if (D.getCompression() != null && p.getOption(Compression.OPTION_KIND) != null)
+				codec = D.getCompression().newCodec();
 
-			sendPacket(response, connectedAddr);
+			//Ack for received SYN+ACK. Carries our real seq so that a listener using SYN cookies can recover our ISN from it
+			response = new TCPPacket(localport, p.sourcePort, seq, p.seqNum + 1, true, false, false, advertisedWindow(), null);
+
+			wrapper.send(response, connectedAddr, sendFlow);
 
 			connectedPort = p.sourcePort;
+			startDataTransfer(p.windowSize);
 
 			printTransition(state, State.ESTABLISHED);
 
+			//Data written while connecting (Fast Open) can go now, and so can a FIN asked for meanwhile
+			scheduleTransmit();
+			if (closeRequested && sendBuffered() == 0)
+				sendFin();
+
 			break;
 			
 		case CLOSING:
 			//Receiving a FIN in this state indicates a dropped ack. Resend it.
 			if (p.finFlag)
-				sendPacket(lastAck, connectedAddr);
+				sendAck();
 			
-			else if (p.ackFlag){
-				tcpTimer.cancel(); //Cancel timer for sent fin
-				tcpTimer = null;
-				
-				printTransition(state, State.TIME_WAIT);
-	
-				createTimerTask(30 * 1000, null); //30 second TIME_WAIT timer
+			else if (isFinAck(p)){
+				retransmissions.ackTo(p.ackNum); //The fin is acked
+				enterTimeWait();
 			}
 			
 			break;
 			
 		case CLOSE_WAIT:
-			//The only thing that can be received here is a retransmitted fin due to a dropped ack.
-			//Resend the ack.
+			//A retransmitted fin here is due to a dropped ack. Resend the ack.
 			if (p.finFlag)
-				sendPacket(lastAck, connectedAddr);
+				sendAck();
+
+			//Anything else acknowledges data we are still sending
+			else if (p.ackFlag)
+				receiveAck(p);
 			
 			break;
 			
@@ -247,7 +537,7 @@ class StudentSocketImpl extends BaseSocketImpl {
 			//The only thing that can be received here is a retransmitted fin due to a dropped ack.
 			//Resend the ack.
 			if (p.finFlag)
-				sendPacket(lastAck, connectedAddr);
+				sendAck();
 			
 			break;
 			
@@ -256,169 +546,1167 @@ class StudentSocketImpl extends BaseSocketImpl {
 
 		}
 
-		this.notifyAll(); //Wake up any threads that may be waiting on a particular state transition.
-
 	}
 
 	/**
-	 * Waits for an incoming connection to arrive to connect this socket to
-	 * Ultimately this is called by the application calling
-	 * ServerSocket.accept(), but this method belongs to the Socket object that
-	 * will be returned, not the listening ServerSocket. Note that localport is
-	 * already set prior to this being called.
+	 * Sets up the data transfer state once the handshake completes. The
+	 * buffers are sized for the segment size agreed on, and data written so
+	 * far is cut into segments of that size.
+	 *
+	 * @param window
+	 *            the window advertised by the other side during the handshake
 	 */
-	@Override
-	public synchronized void acceptConnection() throws IOException {
-		D.registerListeningSocket(this.localport, this);
-		printTransition(State.CLOSED, State.LISTEN);
+	private void startDataTransfer(int window) {
+		address = connectedAddr; //What java.net.Socket reports as the other end
+		port = connectedPort;
+		sendBase = seq;
+		recvNext = connectedSeq + 1;
+		peerWindow = window;
 
-		//Thread will sleep until the connection is established
-		while (state != State.ESTABLISHED) {
-			try {
-				wait();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
+		//Two segments must fit the window, or a receiver holding back a small opening (see advertisedWindow()) and a
+		//sender waiting for room for a whole segment wait for each other
+		mss = Math.min(mss, MAX_WINDOW / 2);
+		int size = Math.min(Math.max(BUFFER_SIZE, BUFFER_SEGMENTS * mss), MAX_WINDOW);
+		sendQueue.setCapacity(size);
+		sendQueue.setPool(SegmentPool.forSegmentSize(mss + 20));
+		recvQueue.setCapacity(size);
+		swsThreshold = Math.min(mss, size / 2);
+		advertisedEdge = recvNext + recvQueue.free();
+
+		if (congestionControl == CongestionControl.BBR) {
+			bbr = new Bbr(mss);
+			deliveryRate = new DeliveryRate();
 		}
 	}
 
 	/**
-	 * Returns an input stream for this socket. Note that this method cannot
-	 * create a NEW InputStream, but must return a reference to an existing
-	 * InputStream (that you create elsewhere) because it may be called more
-	 * than once.
+	 * Handles a data segment or a pure ACK for an established connection.
+	 * Segments are accepted only in order; anything else is dropped and the
+	 * ACK for what we do have is repeated, so the sender goes back to it.
 	 *
-	 * @return a stream for reading from this socket.
-	 * @exception IOException
-	 *                if an I/O error occurs when creating the input stream.
+	 * @param p
+	 *            the packet received
 	 */
-	@Override
-	public InputStream getInputStream() throws IOException {
-		// project 4 return appIS;
-		return null;
+	private void receiveData(TCPPacket p) {
+		if (p.ackFlag)
+			receiveAck(p);
+
+		int len = p.getDataLength();
+		if (len == 0) {
+			//A seq number before what we've received is a window probe (or an old segment): answer with the window
+			if (p.seqNum - recvNext < 0)
+				scheduleAck();
+			return;
+		}
+
+		if (p.seqNum == recvNext && len <= recvQueue.free()) {
+			//A reader waiting on an empty queue is woken once, so it can start its coalescing timeout
+			if (readable() == 0 && readWant > 0)
+				wakeWaiters = true;
+
+			//Like PSH: a short segment ends the sender's write; a nearly full queue can't wait for more
+			boolean push = len < mss || recvQueue.free() - len < mss;
+			int before = readable();
+
+			if (p.getSegment() != null)
+				recvQueue.add(p.getSegment()); //Keeps the received segment itself, no copy
+			else
+				recvQueue.write(p.data, 0, len);
+			recvNext += len;
 
+			if (codec != null)
+				codec.decompressFrom(recvQueue);
+			//Compressed, the segment may not finish a block: with nothing new to read there is nothing to push
+			if (push && readable() > before)
+				recvPushed = true;
+		}
+
+		scheduleAck();
 	}
 
 	/**
-	 * Returns an output stream for this socket. Note that this method cannot
-	 * create a NEW InputStream, but must return a reference to an existing
-	 * InputStream (that you create elsewhere) because it may be called more
-	 * than once.
+	 * Handles the acknowledgement and window carried by a packet. Acked bytes
+	 * leave the send buffer, and as much new data as the window allows goes
+	 * out.
 	 *
-	 * @return an output stream for writing to this socket.
-	 * @exception IOException
-	 *                if an I/O error occurs when creating the output stream.
+	 * @param p
+	 *            the packet received
 	 */
-	@Override
-	public OutputStream getOutputStream() throws IOException {
-		// project 4 return appOS;
-		return null;
+	private void receiveAck(TCPPacket p) {
+		int acked = p.ackNum - sendBase;
+		if (acked < 0 || p.ackNum - seq > 0) //Old, or acks something never sent
+			return;
+
+		//The other side dropped a segment that came out of order, and repeats its ACK (a window update isn't one)
+		boolean dupAck = acked == 0 && p.getDataLength() == 0 && p.windowSize == peerWindow
+				&& retransmissions.size() > 1;
+
+		peerWindow = p.windowSize;
+		long now = clock.nanoTime();
+		if (acked > 0) {
+			if (bbr != null)
+				updateModel(p.ackNum);
+
+			//Every ACK is a round trip sample: from when the newest segment it covers went out, unless that was
+			//sent more than once (Karn: the ACK could be for either copy)
+			long rtt = -1;
+			for (int i = 0; i < retransmissions.size(); i++) {
+				RetransmissionQueue.Entry e = retransmissions.get(i);
+				if (e.end() - p.ackNum > 0)
+					break;
+				rackDelivered(e, now);
+				long sent = e.wireTime();
+				rtt = e.retransmits == 0 && sent != TCPWrapper.QUEUED ? now - sent : -1;
+			}
+			if (rtt >= 0)
+				sampleRtt(rtt, seq - sendBase);
+
+			sendQueue.ackTo(p.ackNum);
+			retransmissions.ackTo(p.ackNum);
+			sendBase = p.ackNum;
+			wakeWaiters = true; //Writers waiting for send space
+			rtoBackoff = 0;
+			probeSent = false;
+		} else if (dupAck)
+			rackDupAck();
+
+		if (acked > 0 || dupAck) {
+			detectLosses(now);
+			resendLost();
+
+			//The timer now runs for the oldest of what is still outstanding, from when that was sent
+			armRetransmitTimer();
+		}
+
+		scheduleTransmit();
+
+		//The last of the data is acked; a close() that was waiting on it can send its FIN now
+		if (closeRequested && sendBuffered() == 0)
+			sendFin();
 	}
 
 	/**
-	 * Closes this socket.
+	 * Takes a round trip sample into the smoothed round trip time and its
+	 * variation, and the retransmission timeout from them (RFC 6298). The
+	 * samples are from the wire, so time spent queued behind the rate limit
+	 * on our side isn't in them; time the ACK spent queued on the other side
+	 * is, and shows up as variation.
+	 * <p>
+	 * There is a sample per ACK rather than per round trip, so the gains are
+	 * divided by the samples a round trip is expected to give, one per two
+	 * segments in flight (RFC 7323, appendix G). Otherwise a window of
+	 * similar samples would wipe out the variation seen before it.
 	 *
-	 * @exception IOException
-	 *                if an I/O error occurs when closing this socket.
+	 * @param inFlight
+	 *            bytes in flight before the ACK
 	 */
-	@Override
-	public synchronized void close() throws IOException {
-		//Sanity check, should never happen
-		if (connectedAddr == null)
-			return;
+	private void sampleRtt(long rtt, int inFlight) {
+		rttHistogram.record(rtt / 1000);
+		if (srtt == 0) {
+			rttvar = rtt / 2;
+			srtt = rtt;
+		} else {
+			int samples = Math.max((inFlight + 2 * mss - 1) / (2 * mss), 1);
+			rttvar += (Math.abs(srtt - rtt) - rttvar) / (4 * samples);
+			srtt += (rtt - srtt) / (8 * samples);
+		}
+		rto = Math.max((srtt + Math.max(4 * rttvar, 1000000)) / 1000000, RTO_MIN);
+	}
 
-		TCPPacket fin = new TCPPacket(this.localport, this.connectedPort, seq, connectedSeq + 1, false, false, true, 5,
-				null);
+	/**
+	 * Feeds the segments an ACK covers to the delivery rate estimator, and its
+	 * sample to the congestion control model. Called before they leave the
+	 * retransmission queue.
+	 */
+	private void updateModel(int ackNum) {
+		long now = clock.nanoTime();
+		for (int i = 0; i < retransmissions.size(); i++) {
+			RetransmissionQueue.Entry e = retransmissions.get(i);
+			if (e.end() - ackNum > 0)
+				break;
+			deliveryRate.onAcked(e, now);
+		}
 
-		sendPacket(fin, connectedAddr);
+		DeliveryRate.Sample rs = deliveryRate.finish(bbr.getMinRtt());
+		if (rs != null)
+			bbr.onAck(rs, deliveryRate.getDelivered(), seq - ackNum, now);
+		deliveryRate.reset();
+	}
 
-		//Two possible states in which a close() can be called
-		if (state == State.ESTABLISHED)
-			printTransition(state, State.FIN_WAIT_1);
+	/**
+	 * @return the most bytes that may be in flight: the other side's window,
+	 *         and the congestion window if there is one
+	 */
+	private int sendWindow() {
+		return bbr == null ? peerWindow : Math.min(peerWindow, bbr.getCwnd());
+	}
 
-		else if (state == State.CLOSE_WAIT)
-			printTransition(state, State.LAST_ACK);
+	/**
+	 * Handles a FIN on an established connection: acks it, provided every
+	 * byte before it has arrived.
+	 *
+	 * @param p
+	 *            the FIN received
+	 * @return true if the FIN was in order and has been acked
+	 */
+	private boolean receiveFin(TCPPacket p) {
+		receiveAck(p);
 
-		//Starts a new thread that will wait until the connection is fully closed.
-		//Allows the application to return immediately from close()
-		CloseThread closer = new CloseThread(this);
-		closer.run();
+		if (p.seqNum != recvNext) { //Data before the FIN is missing, wait for it
+			scheduleAck();
+			return false;
+		}
+
+		peerClosed = true;
+		ackPending = false; //The ACK for the FIN covers everything
+		connectedSeq = p.seqNum;
+		sendAck(); //ACK for fin
+		return true;
 	}
 
 	/**
-	 * create TCPTimerTask instance, handling tcpTimer creation
-	 * 
-	 * @param delay
-	 *            time in milliseconds before call
-	 * @param ref
-	 *            generic reference to be returned to handleTimer
+	 * @return true if the packet acknowledges the FIN we sent
 	 */
-	private TCPTimerTask createTimerTask(long delay, Object ref) {
-		if (tcpTimer == null)
-			tcpTimer = new Timer(false);
-		return new TCPTimerTask(tcpTimer, delay, this, ref);
+	private boolean isFinAck(TCPPacket p) {
+		return p.ackFlag && !p.synFlag && p.ackNum - seq > 0;
 	}
 
 	/**
-	 * handle timer expiration (called by TCPTimerTask)
-	 * 
-	 * @param ref Generic reference that can be used by the timer to return
-	 *            information.
+	 * Sends the unsent segments of the send queue, as many whole segments as
+	 * the other side's window and pacing allow, in one batch. Each one stays in
+	 * the queue, and goes into the retransmission queue, until it is acked. If
+	 * pacing holds the next segment back, the pacer calls paceDue() when it is
+	 * due. If nothing is in flight and the window is too small for the next
+	 * segment, the persist timer is started instead.
 	 */
-	@Override
-	public synchronized void handleTimer(Object ref) {
+	private void transmitData() {
+		if (state != State.ESTABLISHED && state != State.CLOSE_WAIT)
+			return;
 
-		tcpTimer.cancel();
-		tcpTimer = null;
-		
-		// this must run only once the last timer (30 second timer) has expired
-		if (state == State.TIME_WAIT){
-			printTransition(state, State.CLOSED);
-			notifyAll();
-			try {
-				D.unregisterConnection(connectedAddr, localport, connectedPort, this);
-			} catch (IOException e) {
-				e.printStackTrace();
+		if (codec != null)
+			compress(); //ACKs may have made room in the send queue, or acked all of it
+
+		long now = clock.nanoTime();
+		paceNext = Math.max(paceNext, now - PACING_BURST);
+		boolean paced = false;
+
+		int n = 0;
+		SegmentBuffer seg;
+		int window = sendWindow();
+		while ((seg = sendQueue.nextUnsent()) != null && seq + seg.payloadLength() - sendBase <= window) {
+			//Until a round trip has been measured there is no rate to pace at
+			if (srtt > 0) {
+				if (paceNext - now > 0) {
+					paced = true;
+					break;
+				}
+				paceNext += paceInterval(seg.payloadLength());
 			}
+			RetransmissionQueue.Entry e = retransmissions.add(seq, seg.payloadLength(), null, seg, now);
+			if (deliveryRate != null)
+				deliveryRate.onSend(e, seq == sendBase, now);
+
+			seg.seq = seq;
+			sendQueue.markSent();
+			seq += seg.payloadLength();
+			n++;
 		}
-		//If a timer expires in any other state, indicates that an ack was not transmitted for a given packet.
-		//Resend the packet.
-		else{
-			sendPacket(lastPack, connectedAddr);
+
+		//The window has opened; the probes are over
+		if (n > 0 && persisting) {
+			timerTask.cancel();
+			timerTask = null;
+			persisting = false;
+			persistTimeout = RTO;
+		}
+		sendSegments(retransmissions.size() - n, n);
+		segmentsSent += n;
+		if (n > 0)
+			lastSendTime = now;
+
+		//Nothing more to send with room in the window: what is delivered meanwhile shows the application's rate
+		if (deliveryRate != null && sendQueue.nextUnsent() == null && seq - sendBase < window)
+			deliveryRate.markAppLimited(seq - sendBase);
+
+		if (!retransmissions.isEmpty() && timerTask == null)
+			armRetransmitTimer();
+
+		if (paced && !paceWaiting) {
+			paceWaiting = true;
+			D.getPacer().schedule(this, paceNext);
+		}
+
+		//No ACK is coming to reopen the window, and the update that does so may be lost: probe until it opens
+		if (seq == sendBase && sendQueue.nextUnsent() != null && timerTask == null && !paced) {
+			persisting = true;
+			createTimerTask(persistTimeout, PERSIST);
 		}
-		
 	}
 
 	/**
-	 * Prints out a state transition line.
-	 * 
-	 * @param start beginning state
-	 * @param end ending state
+	 * Compression: moves what the application has written into the send
+	 * queue, compressed, as far as the queue has room. Like Nagle's
+	 * algorithm, a partial block waits while anything sent is unacked, to be
+	 * compressed along with what is written meanwhile; otherwise small writes
+	 * would each go out as a tiny segment of their own.
 	 */
-	private void printTransition(State start, State end) {
-		System.out.println("!!! " + stateText[start.ordinal()] + "->" + stateText[end.ordinal()]);
-		state = end;
+	private void compress() {
+		codec.compressTo(sendQueue, sendQueue.size() == 0);
 	}
-	
+
 	/**
-	 * Wrapper function for sending a packet. Stores the packet in case it is dropped.
-	 * 
-	 * @param pack packet to be sent
-	 * @param addr address to which to send the packet
+	 * Pacing rate: the congestion control's, if it has one; otherwise the
+	 * window, times PACING_GAIN percent, per smoothed round trip.
+	 *
+	 * @return how long a segment of the given length takes at that rate, in
+	 *         nanoseconds
 	 */
-	private void sendPacket(TCPPacket pack, InetAddress addr){
-		TCPWrapper.send(pack, addr); //Actually send the packet
-		
-		//For FINs, ACKs, and SYN+ACKs, send the packet and start a retransmission timer.
-		//Also, save it as the lastPack sent.
-		if (!pack.ackFlag || pack.synFlag){
-			lastPack = pack;
-			createTimerTask(1000, null);
-		}
-		
-		//For ACKs, no retransmission. Save the packet as the lastAck sent.
+	private long paceInterval(int length) {
+		if (bbr != null && bbr.getPacingRate() > 0)
+			return length * 1000000000L / bbr.getPacingRate();
+		return length * srtt * 100 / ((long) Math.max(sendWindow(), 1) * PACING_GAIN);
+	}
+
+	/**
+	 * Called by the Pacer once the next paced segment is due.
+	 */
+	synchronized void paceDue() {
+		paceWaiting = false;
+		transmitData();
+		notifyReadiness();
+	}
+
+	/**
+	 * Sends a window probe: an ACK with a seq number the other side has
+	 * already received, which it answers with an ACK carrying its current
+	 * window. It has no data, so it can't be refused for lack of space.
+	 */
+	private void sendWindowProbe() {
+		wrapper.send(new TCPPacket(localport, connectedPort, sendBase - 1, recvNext, true, false, false,
+				advertisedWindow(), null), connectedAddr, sendFlow);
+	}
+
+	/**
+	 * Go-back-N: sends everything in the retransmission queue again, oldest
+	 * first, data from the same buffers, and restarts the timer. The other
+	 * side drops whatever arrives out of order, so everything after a lost
+	 * segment has to go again anyway.
+	 */
+	private void retransmit() {
+		for (int i = 0; i < retransmissions.size(); i++)
+			retransmissions.get(i).lost = true;
+		resendLost();
+		armRetransmitTimer();
+	}
+
+	/**
+	 * Sends the entries of the retransmission queue marked lost again, in
+	 * order. Runs of data segments go out in one sendSegments() call each.
+	 */
+	private void resendLost() {
+		long now = clock.nanoTime();
+		int run = 0; //Data segments waiting to go out in one sendSegments() call
+		boolean any = false;
+		//Nothing is in flight if every outstanding segment is lost
+		boolean idle = true;
+		for (int i = 0; i < retransmissions.size() && idle; i++)
+			idle = retransmissions.get(i).lost;
+		for (int i = 0; i < retransmissions.size(); i++) {
+			RetransmissionQueue.Entry e = retransmissions.get(i);
+			if (!e.lost || e.seg == null) {
+				sendSegments(i - run, run);
+				run = 0;
+			}
+			if (!e.lost)
+				continue;
+
+			e.lost = false;
+			e.sentTime = now;
+			e.retransmits++;
+			any = true;
+			if (e.seg == null) { //SYN, SYN+ACK or FIN
+				wrapper.send(e.packet, connectedAddr, sendFlow);
+				idle = false;
+				continue;
+			}
+
+			if (deliveryRate != null)
+				deliveryRate.onSend(e, idle, now);
+			idle = false;
+			segmentsRetransmitted++;
+			run++;
+		}
+		sendSegments(retransmissions.size() - run, run);
+
+		if (any)
+			lastSendTime = now;
+	}
+
+	/**
+	 * RACK: notes a segment as delivered, along with the round trip it took.
+	 * The one sent last of those delivered tells which are lost (see
+	 * detectLosses()).
+	 */
+	private void rackDelivered(RetransmissionQueue.Entry e, long now) {
+		long sent = e.wireTime();
+		if (sent == TCPWrapper.QUEUED)
+			return; //Acked through an earlier copy while this one waits to go out
+		long rtt = now - sent;
+		if (e.retransmits > 0 && rtt < rackMinRtt)
+			return; //Too quick to be for the copy sent last: it's the ACK of an earlier one
+		if (!sentAfter(sent, e.end(), rackXmitTime, rackEndSeq))
+			return;
+
+		rackXmitTime = sent;
+		rackEndSeq = e.end();
+		rackRtt = rtt;
+		rackMinRtt = rackMinRtt == 0 ? rtt : Math.min(rackMinRtt, rtt);
+	}
+
+	/**
+	 * RACK, on a duplicate ACK. The other side keeps nothing out of order, so
+	 * it doesn't say which segment it got; but it was one after the oldest,
+	 * so it was sent no earlier than the earliest sent of those. That is
+	 * taken as delivered, without a round trip.
+	 */
+	private void rackDupAck() {
+		RetransmissionQueue.Entry first = null;
+		for (int i = 1; i < retransmissions.size(); i++) {
+			RetransmissionQueue.Entry e = retransmissions.get(i);
+			if (e.wireTime() != TCPWrapper.QUEUED
+					&& (first == null || sentAfter(first.wireTime(), first.end(), e.wireTime(), e.end())))
+				first = e;
+		}
+		if (first != null && sentAfter(first.wireTime(), first.end(), rackXmitTime, rackEndSeq)) {
+			rackXmitTime = first.wireTime();
+			rackEndSeq = first.end();
+		}
+	}
+
+	/**
+	 * RACK (RFC 8985): a segment is lost if one sent after it has been
+	 * delivered, and it has had a round trip plus the reordering window (a
+	 * quarter of the shortest round trip) to arrive too. Lost segments are
+	 * marked for resendLost(); the reordering timer is set for the first of
+	 * the others sent before the delivered one. What hasn't gone out yet
+	 * can't be lost.
+	 */
+	private void detectLosses(long now) {
+		reorderAt = 0;
+		if (rackXmitTime == 0 || rackRtt == 0)
+			return;
+
+		long reoWnd = srtt > 0 ? Math.min(rackMinRtt / 4, srtt) : rackMinRtt / 4;
+		for (int i = 0; i < retransmissions.size(); i++) {
+			RetransmissionQueue.Entry e = retransmissions.get(i);
+			long sent = e.wireTime();
+			if (sent == TCPWrapper.QUEUED || !sentAfter(rackXmitTime, rackEndSeq, sent, e.end()))
+				continue;
+
+			long due = sent + rackRtt + reoWnd;
+			if (due - now <= 0)
+				e.lost = true;
+			else if (reorderAt == 0 || due - reorderAt < 0)
+				reorderAt = due;
+		}
+	}
+
+	/**
+	 * @return true if the segment sent at time t1, ending at seq1, was sent
+	 *         after the one sent at t2, ending at seq2. Segments sent
+	 *         together are in seq order.
+	 */
+	private static boolean sentAfter(long t1, int seq1, long t2, int seq2) {
+		return t1 - t2 > 0 || (t1 == t2 && seq1 - seq2 > 0);
+	}
+
+	/**
+	 * @return the retransmission timeout, in milliseconds, backed off for the
+	 *         timeouts since the last new ACK
+	 */
+	private long rtoMillis() {
+		return Math.min(rto << Math.min(rtoBackoff, 16), RTO_MAX);
+	}
+
+	/**
+	 * @return the TCPClock nanoTime the retransmission timeout of the oldest
+	 *         entry is due: the timeout after it last went out on the wire.
+	 *         One still waiting to go out, behind the rate limit, has the
+	 *         whole timeout from now.
+	 */
+	private long rtoDeadline(long now) {
+		long sent = retransmissions.peek().wireTime();
+		return (sent != TCPWrapper.QUEUED ? sent : now) + rtoMillis() * 1000000;
+	}
+
+	/**
+	 * @return the TCPClock nanoTime the tail loss probe is due: two smoothed
+	 *         round trips (RFC 8985), but no later than the retransmission
+	 *         timeout, after the last send went out. While the newest entry
+	 *         is still waiting to go out, that is from now.
+	 */
+	private long probeDeadline(long now) {
+		long sent = retransmissions.get(retransmissions.size() - 1).wireTime();
+		if (sent == TCPWrapper.QUEUED)
+			sent = now;
+		if (lastSendTime - sent > 0) //Resent since, by RACK
+			sent = lastSendTime;
+		return sent + Math.max(Math.min(2 * srtt, rtoMillis() * 1000000), PTO_MIN * 1000000);
+	}
+
+	/**
+	 * Runs the timer that is due first for the retransmission queue: the
+	 * RACK reordering timer; the tail loss probe, two round trips after the
+	 * last send, if no probe has gone out since the last new ACK; or the
+	 * retransmission timeout, after the oldest entry last went out, however
+	 * much has been sent or acked since. Replaces whichever timer was
+	 * running; with nothing outstanding, none is left running.
+	 */
+	private void armRetransmitTimer() {
+		cancelTimer();
+		if (retransmissions.isEmpty())
+			return;
+
+		long now = clock.nanoTime();
+		long at = rtoDeadline(now);
+		Object ref = null;
+		if (reorderAt != 0 && reorderAt - at < 0) {
+			at = reorderAt;
+			ref = REORDER;
+		}
+		if (srtt > 0 && !probeSent && retransmissions.get(retransmissions.size() - 1).wireTime() != TCPWrapper.QUEUED) {
+			long probeAt = probeDeadline(now);
+			if (probeAt - at < 0) {
+				at = probeAt;
+				ref = PROBE;
+			}
+		}
+
+		long delay = (at - now + 999999) / 1000000;
+		createTimerTask(Math.max(delay, 0), ref);
+	}
+
+	/**
+	 * Sends a run of data segments of the retransmission queue, acking
+	 * everything received so far. The header shared by the run is written
+	 * into each segment in front of its data, so no data is copied, and the
+	 * run goes to TCPWrapper in one call.
+	 *
+	 * @param first
+	 *            index of the first segment in the retransmission queue
+	 * @param count
+	 *            number of segments
+	 */
+	private void sendSegments(int first, int count) {
+		if (count == 0)
+			return;
+
+		if (burst.length < count)
+			burst = new SegmentBuffer[Math.max(count, burst.length * 2)];
+		for (int i = 0; i < count; i++)
+			burst[i] = retransmissions.get(first + i).seg;
+
+		TCPPacket template = new TCPPacket(localport, connectedPort, 0, recvNext, true, false, false,
+				advertisedWindow(), null);
+		wrapper.sendSegments(template, burst, count, connectedAddr, sendFlow);
+		Arrays.fill(burst, 0, count, null); //Don't hold on to segments once they're acked
+		ackPending = false; //These carry the ACK
+	}
+
+	/**
+	 * Sends an ACK now, or at the end of the batch being handled.
+	 */
+	private void scheduleAck() {
+		if (inBatch)
+			ackPending = true;
+		else
+			sendAck();
+	}
+
+	/**
+	 * Sends whatever the window allows now, or at the end of the batch being
+	 * handled.
+	 */
+	private void scheduleTransmit() {
+		if (inBatch)
+			transmitPending = true;
 		else
-			lastAck = pack;
+			transmitData();
+	}
+
+	/**
+	 * Acknowledges everything received in order so far, advertising the space
+	 * left in the receive buffer.
+	 */
+	private void sendAck() {
+		wrapper.send(makeAck(), connectedAddr, sendFlow);
+	}
+
+	/**
+	 * @return an ACK for everything received so far, the other side's FIN
+	 *         included once it has arrived
+	 */
+	private TCPPacket makeAck() {
+		return new TCPPacket(localport, connectedPort, seq, peerClosed ? connectedSeq + 1 : recvNext, true, false,
+				false, advertisedWindow(), null);
+	}
+
+	/**
+	 * Silly window avoidance on the receiving side: the right edge of the
+	 * window stays where it was until the free space in the receive buffer
+	 * can move it on by at least swsThreshold, and then moves all the way.
+	 *
+	 * @return the window to advertise
+	 */
+	private int advertisedWindow() {
+		int free = recvQueue.free();
+		int offered = Math.min(Math.max(advertisedEdge - recvNext, 0), free);
+		int window = free - offered >= swsThreshold ? free : offered;
+		advertisedEdge = recvNext + window;
+		return window;
+	}
+
+	/**
+	 * Reads whatever received data is available, without blocking.
+	 *
+	 * @param dst
+	 *            buffer to read into
+	 * @return the number of bytes read, or -1 if the other side has closed and
+	 *         everything it sent has been read
+	 */
+	public synchronized int read(ByteBuffer dst) {
+		if (synDeferred)
+			sendSyn();
+		if (codec != null && codec.isCorrupt())
+			return -1;
+		if (readable() == 0)
+			return peerClosed ? -1 : 0;
+
+		int n = codec != null ? codec.read(dst) : recvQueue.read(dst);
+		readDone();
+		return n;
+	}
+
+	/**
+	 * Queues as much data as fits in the send buffer, without blocking.
+	 *
+	 * @param src
+	 *            buffer to write from
+	 * @return the number of bytes queued
+	 * @exception IOException
+	 *                if the socket can no longer send
+	 */
+	public synchronized int write(ByteBuffer src) throws IOException {
+		if (!canWrite())
+			throw new SocketException("Socket is not connected");
+
+		int n;
+		if (codec != null) {
+			n = codec.write(src);
+			compress();
+		} else
+			n = sendQueue.write(src);
+		if (synDeferred)
+			sendSyn();
+		transmitData();
+		return n;
+	}
+
+	/**
+	 * @return bytes received that the application can read now: with
+	 *         compression, those decompressed so far
+	 */
+	private int readable() {
+		return codec != null ? codec.available() : recvQueue.size();
+	}
+
+	/**
+	 * @return bytes written and not yet acked: in the send queue, or with
+	 *         compression, still on their way into it
+	 */
+	private int sendBuffered() {
+		return sendQueue.size() + (codec != null ? codec.buffered() : 0);
+	}
+
+	/**
+	 * @return true if the application may write: the connection is open, or
+	 *         with Fast Open, on its way to being open
+	 */
+	private boolean canWrite() {
+		if (closeRequested)
+			return false;
+		if (state == State.ESTABLISHED || state == State.CLOSE_WAIT)
+			return true;
+		return fastOpen && (state == State.CLOSED || state == State.SYN_SENT || state == State.SYN_RCVD);
+	}
+
+	/**
+	 * Called after the application takes data out of the receive buffer.
+	 * Sends a window update once the window can grow by a useful amount
+	 * (swsThreshold) and at least doubles what the other side may still
+	 * send. Smaller openings wait for the ACK of the next data, so a slow
+	 * reader costs neither a stream of tiny updates nor tiny segments. An
+	 * update that is lost is recovered by the sender's window probes.
+	 */
+	private void readDone() {
+		if (codec != null)
+			codec.decompressFrom(recvQueue); //What was held back for want of room
+		if (readable() == 0)
+			recvPushed = false;
+
+		if (state == State.CLOSED || state == State.SYN_RCVD || peerClosed)
+			return;
+
+		int offered = Math.max(advertisedEdge - recvNext, 0);
+		int free = recvQueue.free();
+		if (free - offered >= swsThreshold && free >= 2 * offered)
+			sendAck();
+	}
+
+	/**
+	 * @return true if read() would return something other than 0
+	 */
+	public synchronized boolean isReadable() {
+		return readable() > 0 || peerClosed || (codec != null && codec.isCorrupt());
+	}
+
+	/**
+	 * @return true if write() would accept at least one byte
+	 */
+	public synchronized boolean isWritable() {
+		return canWrite() && (codec != null ? codec.room() : sendQueue.free()) > 0;
+	}
+
+	/**
+	 * @return how many data segments have been sent, not counting
+	 *         retransmissions
+	 */
+	public synchronized long getSegmentsSent() {
+		return segmentsSent;
+	}
+
+	/**
+	 * @return how many data segments have been retransmitted
+	 */
+	public synchronized long getRetransmitCount() {
+		return segmentsRetransmitted;
+	}
+
+	/**
+	 * @return the most data a segment carries: the smaller of the two sides'
+	 *         MSS, once the connection is open
+	 */
+	public synchronized int getMss() {
+		return mss;
+	}
+
+	/**
+	 * Chooses the congestion control of this connection, instead of the
+	 * Demultiplexer's default. Takes effect when the connection opens.
+	 */
+	public synchronized void setCongestionControl(CongestionControl cc) {
+		congestionControl = cc;
+	}
+
+	/**
+	 * @return the connection's BBR model, or null if it doesn't use BBR
+	 */
+	public synchronized Bbr getBbr() {
+		return bbr;
+	}
+
+	/**
+	 * @return the round trip times measured so far, in microseconds
+	 */
+	public LatencyHistogram getRttHistogram() {
+		return rttHistogram.copy();
+	}
+
+	/**
+	 * Registers a callback run after every packet or timer that may have
+	 * changed the socket's state or buffers. It runs while the socket's monitor
+	 * is held, so it must not block.
+	 *
+	 * @param listener
+	 *            the callback, or null to remove it
+	 */
+	public synchronized void setReadinessListener(Runnable listener) {
+		readinessListener = listener;
+	}
+
+	private void notifyReadiness() {
+		if (readinessListener != null)
+			readinessListener.run();
+	}
+
+	/**
+	 * Waits for an incoming connection to arrive to connect this socket to
+	 * Ultimately this is called by the application calling
+	 * ServerSocket.accept(), but this method belongs to the Socket object that
+	 * will be returned, not the listening ServerSocket. Note that localport is
+	 * already set prior to this being called.
+	 */
+	@Override
+	public synchronized void acceptConnection() throws IOException {
+		startAccept();
+
+		//Thread will sleep until the connection is established, or a Fast Open SYN has brought data
+		while (state != State.ESTABLISHED && !fastOpen) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Starts listening for an incoming connection on the given port, without
+	 * waiting for it to arrive.
+	 *
+	 * @param port
+	 *            the local port to accept a connection on
+	 */
+	public synchronized void startAccept(int port) throws IOException {
+		localport = port;
+		startAccept();
+	}
+
+	/**
+	 * Starts listening for an incoming connection on localport, without waiting
+	 * for it to arrive.
+	 */
+	public synchronized void startAccept() throws IOException {
+		//A connection may already have completed through a SYN cookie while no one was accepting
+		SynCookies.Established cookie = D.pollCookieOrListen(this.localport, this);
+		printTransition(State.CLOSED, State.LISTEN);
+		if (cookie != null) {
+			establishFromCookie(cookie);
+			notifyReadiness();
+		}
+	}
+
+	/**
+	 * Called by Demultiplexer when a valid SYN cookie ACK arrives for the port
+	 * this socket is listening on.
+	 * 
+	 * @param cookie
+	 *            the connection recovered from the cookie
+	 */
+	public synchronized void acceptCookieConnection(SynCookies.Established cookie) {
+		if (state != State.LISTEN)
+			return;
+
+		try {
+			D.unregisterListeningSocket(localport, this);
+			establishFromCookie(cookie);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		notifyAll();
+		notifyReadiness();
+	}
+
+	/**
+	 * Moves a socket in LISTEN straight to ESTABLISHED using the state carried
+	 * in a SYN cookie. No SYN+ACK is outstanding, so no timer is started.
+	 * 
+	 * @param cookie
+	 *            the connection recovered from the cookie
+	 */
+	private void establishFromCookie(SynCookies.Established cookie) throws IOException {
+		seq = cookie.seq;
+		connectedSeq = cookie.remoteSeq;
+		connectedAddr = cookie.remoteAddr;
+		connectedPort = cookie.remotePort;
+		mss = Math.min(mss, cookie.mss);
+		startDataTransfer(BUFFER_SIZE); //The handshake ACK's window isn't kept in the cookie
+
+		D.registerConnection(connectedAddr, localport, connectedPort, this);
+		printTransition(State.LISTEN, State.ESTABLISHED);
+	}
+
+	/**
+	 * Tells the Demultiplexer that a ServerSocket is listening on this port, so
+	 * that SYNs arriving while no socket is in accept() can be answered with a
+	 * cookie.
+	 * 
+	 * @param backlog
+	 *            the maximum number of cookie connections to queue
+	 */
+	@Override
+	protected void listen(int backlog) throws IOException {
+		D.registerListenPort(localport, backlog);
+	}
+
+	/**
+	 * Returns an input stream for this socket. Note that this method cannot
+	 * create a NEW InputStream, but must return a reference to an existing
+	 * InputStream (that you create elsewhere) because it may be called more
+	 * than once.
+	 *
+	 * @return a stream for reading from this socket.
+	 * @exception IOException
+	 *                if an I/O error occurs when creating the input stream.
+	 */
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return appIS;
+	}
+
+	/**
+	 * Returns an output stream for this socket. Note that this method cannot
+	 * create a NEW InputStream, but must return a reference to an existing
+	 * InputStream (that you create elsewhere) because it may be called more
+	 * than once.
+	 *
+	 * @return an output stream for writing to this socket.
+	 * @exception IOException
+	 *                if an I/O error occurs when creating the output stream.
+	 */
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return appOS;
+	}
+
+	/**
+	 * Closes this socket.
+	 *
+	 * @exception IOException
+	 *                if an I/O error occurs when closing this socket.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (connectedAddr == null) {
+			//A socket still waiting for a connection stops listening
+			if (state == State.LISTEN) {
+				D.unregisterListeningSocket(localport, this);
+				printTransition(state, State.CLOSED);
+				notifyAll();
+			}
+			//A ServerSocket's impl is never connected; closing it stops the port from listening
+			else
+				D.unregisterListenPort(localport);
+			return;
+		}
+
+		startClose();
+
+		//Starts a new thread that will wait until the connection is fully closed.
+		//Allows the application to return immediately from close()
+		CloseThread closer = new CloseThread(this);
+		closer.run();
+	}
+
+	/**
+	 * Starts closing the connection without waiting for it to finish. The FIN
+	 * is sent once everything already written has been acknowledged.
+	 */
+	public synchronized void startClose() {
+		if (closeRequested || connectedAddr == null)
+			return;
+		if (synDeferred)
+			sendSyn(); //Nothing was written: an ordinary handshake, then the FIN
+		closeRequested = true;
+
+		if (sendBuffered() == 0)
+			sendFin();
+	}
+
+	/**
+	 * Sends our FIN. Called once close() has been requested and the send
+	 * buffer has drained.
+	 */
+	private void sendFin() {
+		//Two possible states in which a FIN can be sent
+		if (state != State.ESTABLISHED && state != State.CLOSE_WAIT)
+			return;
+
+		TCPPacket fin = new TCPPacket(this.localport, this.connectedPort, seq, recvNext, false, false, true,
+				advertisedWindow(), null);
+
+		sendPacket(fin, connectedAddr);
+
+		if (state == State.ESTABLISHED)
+			printTransition(state, State.FIN_WAIT_1);
+
+		else if (state == State.CLOSE_WAIT)
+			printTransition(state, State.LAST_ACK);
+	}
+
+	/**
+	 * create TCPTimerTask instance, handling tcpTimer creation. Only one
+	 * runs at a time: cancelTimer() first.
+	 * 
+	 * @param delay
+	 *            time in milliseconds before call
+	 * @param ref
+	 *            generic reference to be returned to handleTimer
+	 */
+	private TCPTimerTask createTimerTask(long delay, Object ref) {
+		if (tcpTimer == null)
+			tcpTimer = clock.newTimer();
+		timerTask = new TCPTimerTask(tcpTimer, delay, this, ref);
+		return timerTask;
+	}
+
+	/**
+	 * Cancels whichever timer is running, if any. The timer's thread is
+	 * kept for the next one. Window probes that were going on are over, and
+	 * the next ones start from the shortest delay.
+	 */
+	private void cancelTimer() {
+		if (timerTask != null) {
+			timerTask.cancel();
+			timerTask = null;
+		}
+		if (persisting) {
+			persisting = false;
+			persistTimeout = RTO;
+		}
+	}
+
+	/**
+	 * handle timer expiration (called by TCPTimerTask)
+	 * 
+	 * @param ref Generic reference that can be used by the timer to return
+	 *            information.
+	 */
+	@Override
+	public synchronized void handleTimer(Object ref) {
+
+		timerTask = null;
+		persisting = false;
+		
+		// this must run only once the last timer (30 second timer) has expired
+		if (state == State.TIME_WAIT)
+			closeNow();
+		//Persist timer: probe the window again, backing off, and restart whichever timer is due now
+		else if (ref == PERSIST) {
+			if (state == State.ESTABLISHED || state == State.CLOSE_WAIT) {
+				sendWindowProbe();
+				persistTimeout = Math.min(persistTimeout * 2, PERSIST_MAX);
+			}
+			transmitData();
+			if (!persisting) //No more probes: the window opened, or the connection moved on
+				persistTimeout = RTO;
+		}
+		//RACK reordering timer: what wasn't lost on the last ACK may be now
+		else if (ref == REORDER) {
+			detectLosses(clock.nanoTime());
+			resendLost();
+			armRetransmitTimer();
+		}
+		//Tail loss probe: no ACK for two round trips. The other side keeps nothing out of order, so the probe is
+		//the oldest segment, not the newest; its ACK lets RACK find whatever else is lost, well before the RTO.
+		//A probe that isn't due yet (more was sent since the timer was set) waits for the rest of its time.
+		else if (ref == PROBE) {
+			long now = clock.nanoTime();
+			if (!retransmissions.isEmpty() && now - probeDeadline(now) >= 0) {
+				probeSent = true;
+				retransmissions.peek().lost = true;
+				resendLost();
+			}
+			armRetransmitTimer();
+		}
+		//Retransmission timeout: the oldest thing sent wasn't acked in time. Back off, go back to it and send
+		//everything again. If it went out later than the timer allowed for, it gets the rest of its time.
+		//A SYN isn't backed off: one is dropped whenever the listener's one socket in LISTEN is busy with
+		//another handshake, which says nothing about the network, and backing off would leave the client
+		//behind every client that came after it.
+		else if (!retransmissions.isEmpty()) {
+			long now = clock.nanoTime();
+			if (rtoDeadline(now) - now > 0)
+				armRetransmitTimer();
+			else {
+				if (state != State.SYN_SENT)
+					rtoBackoff++;
+				probeSent = true;
+				retransmit();
+			}
+		}
+
+		notifyReadiness();
+	}
+
+	/**
+	 * Closes the connection right away, and forgets it.
+	 */
+	private void closeNow() {
+		printTransition(state, State.CLOSED);
+		notifyAll();
+		try {
+			D.unregisterConnection(connectedAddr, localport, connectedPort, this);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Moves the connection into TIME_WAIT. Only the 4-tuple and our ACK of the
+	 * FIN are needed to answer a retransmitted FIN, so they are handed to the
+	 * Demultiplexer's TIME_WAIT table and this socket closes right away. If the
+	 * table can't hold the connection, the socket itself waits out TIME_WAIT.
+	 */
+	private void enterTimeWait() {
+		printTransition(state, State.TIME_WAIT);
+
+		cancelTimer();
+
+		try {
+			if (D.registerTimeWait(connectedAddr, localport, connectedPort, makeAck(), this)) {
+				printTransition(state, State.CLOSED);
+				return;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		createTimerTask(TIME_WAIT_LENGTH, null); //Keep the full socket for the TIME_WAIT period
+	}
+
+	/**
+	 * Prints out a state transition line.
+	 * 
+	 * @param start beginning state
+	 * @param end ending state
+	 */
+	private void printTransition(State start, State end) {
+		System.out.println("!!! " + stateText[start.ordinal()] + "->" + stateText[end.ordinal()]);
+		state = end;
+		wakeWaiters = true;
+
+		//A closed connection gives its segments back to the pool, its codec for reuse, and its timer's thread up
+		if (end == State.CLOSED) {
+			if (tcpTimer != null) {
+				tcpTimer.cancel();
+				tcpTimer = null;
+				timerTask = null;
+			}
+			retransmissions.clear();
+			sendQueue.clear();
+			recvQueue.clear();
+			if (codec != null) {
+				codec.release();
+				codec = null;
+			}
+		}
+	}
+	
+	/**
+	 * Wrapper function for sending a SYN, SYN+ACK or FIN. Each takes up a seq
+	 * number, so it goes into the retransmission queue until it is acked.
+	 * 
+	 * @param pack packet to be sent
+	 * @param addr address to which to send the packet
+	 */
+	private void sendPacket(TCPPacket pack, InetAddress addr){
+		wrapper.send(pack, addr, sendFlow); //Actually send the packet
+
+		retransmissions.add(pack.seqNum, 1 + pack.getDataLength(), pack, null, clock.nanoTime());
+		if (retransmissions.size() == 1)
+			armRetransmitTimer();
 	}
 	
 	/**
@@ -429,4 +1717,111 @@ class StudentSocketImpl extends BaseSocketImpl {
 	public State getState() {
 		return state;
 	}
+
+	/**
+	 * The stream returned by getInputStream(). Reads block until data arrives
+	 * or the other side closes. Like GRO, in-order segments are gathered
+	 * before the reader is woken: a read returns once COALESCE_BYTES (or the
+	 * length asked for) have arrived, the sender's burst has ended, or
+	 * COALESCE_MILLIS have passed since the first byte.
+	 */
+	private class SocketInputStream extends InputStream {
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+
+			synchronized (StudentSocketImpl.this) {
+				if (synDeferred)
+					sendSyn();
+
+				int want = Math.min(len, COALESCE_BYTES);
+				long deadline = 0;
+				try {
+					while (readable() < want && !(recvPushed && readable() > 0) && !peerClosed
+							&& (codec == null || !codec.isCorrupt())) {
+						long wait = 0;
+						if (readable() > 0) { //Some data is here; wait a little longer for more
+							long now = System.currentTimeMillis();
+							if (deadline == 0)
+								deadline = now + COALESCE_MILLIS;
+							else if (now >= deadline)
+								break;
+							wait = deadline - now;
+						}
+
+						readWant = want;
+						StudentSocketImpl.this.wait(wait);
+					}
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				} finally {
+					readWant = 0;
+				}
+
+				if (codec != null && codec.isCorrupt())
+					throw new IOException("compressed data is corrupt");
+				if (peerClosed && readable() == 0)
+					return -1;
+
+				int n = codec != null ? codec.read(b, off, len) : recvQueue.read(b, off, len);
+				readDone();
+				return n;
+			}
+		}
+
+		@Override
+		public int available() throws IOException {
+			synchronized (StudentSocketImpl.this) {
+				return readable();
+			}
+		}
+	}
+
+	/**
+	 * The stream returned by getOutputStream(). Writes block until all the
+	 * bytes fit in the send buffer.
+	 */
+	private class SocketOutputStream extends OutputStream {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			synchronized (StudentSocketImpl.this) {
+				while (len > 0) {
+					if (!canWrite())
+						throw new SocketException("Socket is not connected");
+
+					int n;
+					if (codec != null) {
+						n = codec.write(b, off, len);
+						compress();
+					} else
+						n = sendQueue.write(b, off, len);
+					off += n;
+					len -= n;
+					if (synDeferred)
+						sendSyn();
+					transmitData();
+
+					if (len > 0) {
+						try {
+							StudentSocketImpl.this.wait();
+						} catch (InterruptedException e) {
+							throw new InterruptedIOException();
+						}
+					}
+				}
+			}
+		}
+	}
 }
@@ -5,11 +5,12 @@ import java.net.*;
 // class StudentSocketImplFactory
 //
 // this object is what actually creates each INSTANCE of a
-// SocketImpl object.  In TCPStart.main(), we call
+// SocketImpl object.  each TCPStack has one, and TCPStart installs
+// its stack's with
 //
-//     Socket.setSocketImplFactory( new StudentSocketImplFactory(D) );
+//     Socket.setSocketImplFactory( factory );
 //
-// (this is a static function)
+// (this is a static function, see TCPStack.install())
 // so, when we create a java Socket, it will make a call to
 // createSocketImpl(), and the Socket will use OUR code!!!
 //
@@ -0,0 +1,156 @@
+import java.net.InetAddress;
+import java.security.SecureRandom;
+
+//---------------------------------------------------
+//
+// class SynCookies
+//
+// stateless SYN+ACK sequence numbers for a listening port whose SYN
+// queue is full (i.e. no socket is sitting in LISTEN waiting for it).
+//
+// the SYN+ACK's sequence number is built as
+//
+//     | 5 bit time counter | 2 bit MSS index | 25 bit keyed hash |
+//
+// where the hash covers the remote address, both ports, the client's
+// initial sequence number, the counter and the MSS index.  the index
+// picks the largest of MSS_TABLE that both sides take, which is the
+// MSS the connection gets (like Linux, the exact value can't be
+// kept).  the counter advances once
+// every COUNTER_PERIOD milliseconds, and a cookie is honoured for the
+// current and the previous period only.
+//
+// when the final ACK of the handshake comes back, ackNum-1 is the
+// cookie and seqNum-1 is the client's initial sequence number, so
+// everything needed to rebuild the connection is in that one packet.
+//
+// NOTE: the SYN+ACK sent with a cookie is never retransmitted (there is
+// no state to retransmit from).  a lost SYN+ACK is recovered by the
+// client's own SYN retransmission.
+//
+//---------------------------------------------------
+class SynCookies {
+
+	private static final int COUNTER_BITS = 5;
+	private static final int MSS_BITS = 2;
+	private static final int HASH_BITS = 32 - COUNTER_BITS - MSS_BITS;
+	private static final int HASH_MASK = (1 << HASH_BITS) - 1;
+	private static final int COUNTER_MASK = (1 << COUNTER_BITS) - 1;
+	private static final int MSS_MASK = (1 << MSS_BITS) - 1;
+
+	//The segment sizes a cookie can carry
+	static final int[] MSS_TABLE = { TCPPacket.MIN_MSS, TCPPacket.MAX_PACKET_SIZE, 1460, 8960 };
+	private static final long COUNTER_PERIOD = 64 * 1000; // in milliseconds
+
+	private final int secret;
+	private final TCPClock clock;
+
+	/**
+	 * Connection parameters recovered from a valid cookie ACK, waiting to be
+	 * handed to a socket calling accept().
+	 */
+	static class Established {
+		final InetAddress remoteAddr;
+		final int remotePort;
+		final int seq; // our next sequence number
+		final int remoteSeq; // client's initial sequence number
+		final int mss; // the connection's segment size
+
+		Established(InetAddress remoteAddr, int remotePort, int seq, int remoteSeq, int mss) {
+			this.remoteAddr = remoteAddr;
+			this.remotePort = remotePort;
+			this.seq = seq;
+			this.remoteSeq = remoteSeq;
+			this.mss = mss;
+		}
+	}
+
+	/**
+	 * @param clock
+	 *            the clock the counter follows
+	 */
+	SynCookies(TCPClock clock) {
+		this.clock = clock;
+		secret = new SecureRandom().nextInt();
+	}
+
+	/**
+	 * Builds the sequence number to put in a SYN+ACK answering the given SYN.
+	 *
+	 * @param syn the SYN received for a listening port
+	 * @param mss the most data the connection may put in a segment: the
+	 *            smaller of the SYN's MSS option and ours
+	 * @return the cookie to use as the SYN+ACK's sequence number
+	 */
+	public int encode(TCPPacket syn, int mss) {
+		int counter = currentCounter();
+		int index = 0;
+		while (index < MSS_MASK && MSS_TABLE[index + 1] <= mss)
+			index++;
+		return (counter << (HASH_BITS + MSS_BITS)) | (index << HASH_BITS)
+				| hash(syn.sourceAddr, syn.sourcePort, syn.destPort, syn.seqNum, counter, index);
+	}
+
+	/**
+	 * Checks the final ACK of a handshake against the cookie it acknowledges.
+	 *
+	 * @param ack the bare ACK received for a listening port
+	 * @return the recovered connection, or null if the cookie is not valid
+	 */
+	public Established decode(TCPPacket ack) {
+		int cookie = ack.ackNum - 1;
+		int remoteSeq = ack.seqNum - 1;
+		int counter = cookie >>> (HASH_BITS + MSS_BITS);
+		int index = (cookie >>> HASH_BITS) & MSS_MASK;
+		int now = currentCounter();
+
+		//Only the current and previous counter periods are accepted
+		if (counter != now && counter != ((now - 1) & COUNTER_MASK))
+			return null;
+
+		if ((cookie & HASH_MASK) != hash(ack.sourceAddr, ack.sourcePort, ack.destPort, remoteSeq, counter, index))
+			return null;
+
+		return new Established(ack.sourceAddr, ack.sourcePort, ack.ackNum, remoteSeq, MSS_TABLE[index]);
+	}
+
+	private int currentCounter() {
+		return (int) (clock.currentTimeMillis() / COUNTER_PERIOD) & COUNTER_MASK;
+	}
+
+	private int hash(InetAddress addr, int remotePort, int localPort, int remoteSeq, int counter, int mssIndex) {
+		int h = secret;
+		for (byte b : addr.getAddress())
+			h = mix(h, b & 0xff);
+		h = mix(h, (remotePort << 16) | (localPort & 0xffff));
+		h = mix(h, remoteSeq);
+		h = mix(h, counter);
+		h = mix(h, mssIndex);
+		return avalanche(h) & HASH_MASK;
+	}
+
+	/**
+	 * One step of the keyed hash (murmur3's): folds k into h.
+	 */
+	static int mix(int h, int k) {
+		k *= 0xcc9e2d51;
+		k = Integer.rotateLeft(k, 15);
+		k *= 0x1b873593;
+		h ^= k;
+		h = Integer.rotateLeft(h, 13);
+		return h * 5 + 0xe6546b64;
+	}
+
+	/**
+	 * Final step of the keyed hash, so that every input bit reaches the low
+	 * bits.
+	 */
+	static int avalanche(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
@@ -0,0 +1,165 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+//---------------------------------------------------
+//
+// class TCPChannel
+//
+// a non-blocking view of one connection, for applications that want to
+// serve many connections from a few threads instead of a thread per
+// java.net.Socket.
+//
+// connect() returns at once with a CompletableFuture that completes
+// when the handshake does.  read() and write() move whatever fits
+// between a ByteBuffer and the socket's buffers and never wait.  to
+// find out which channels can make progress, register them with a
+// TCPSelector.
+//
+// futures are completed from the common ForkJoinPool, never from the
+// Demultiplexer thread, so callbacks chained onto them can block.
+//
+//---------------------------------------------------
+class TCPChannel {
+
+	private final StudentSocketImpl sock;
+	private CompletableFuture<TCPChannel> connectFuture;
+	private boolean connected;
+	private TCPSelector.Key key;
+
+	TCPChannel(StudentSocketImpl sock) {
+		this.sock = sock;
+		sock.setReadinessListener(this::socketChanged);
+	}
+
+	/**
+	 * Opens a connection through the Demultiplexer started by TCPStart.
+	 *
+	 * @see #connect(Demultiplexer, InetAddress, int)
+	 */
+	public static CompletableFuture<TCPChannel> connect(InetAddress address, int port) {
+		return connect(TCPStart.getDemultiplexer(), address, port);
+	}
+
+	/**
+	 * Starts opening a connection.
+	 *
+	 * @param D
+	 *            the Demultiplexer to connect through
+	 * @param address
+	 *            the IP address of the remote host.
+	 * @param port
+	 *            the port number.
+	 * @return a future completing with the channel once it is established
+	 */
+	public static CompletableFuture<TCPChannel> connect(Demultiplexer D, InetAddress address, int port) {
+		TCPChannel channel = new TCPChannel(new StudentSocketImpl(D));
+		CompletableFuture<TCPChannel> future = channel.connectFuture();
+		try {
+			channel.sock.startConnect(address, port);
+		} catch (IOException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Reads whatever has been received, without blocking.
+	 *
+	 * @param dst
+	 *            buffer to read into
+	 * @return the number of bytes read, possibly 0, or -1 at end of stream
+	 */
+	public int read(ByteBuffer dst) {
+		return sock.read(dst);
+	}
+
+	/**
+	 * Queues as much of the buffer as the send buffer has room for, without
+	 * blocking.
+	 *
+	 * @param src
+	 *            buffer to write from
+	 * @return the number of bytes queued, possibly 0
+	 * @exception IOException
+	 *                if the channel is closed
+	 */
+	public int write(ByteBuffer src) throws IOException {
+		return sock.write(src);
+	}
+
+	/**
+	 * Starts closing the connection. Data already written is still delivered;
+	 * this returns without waiting for it.
+	 */
+	public void close() {
+		sock.startClose();
+	}
+
+	/**
+	 * @return true once the handshake has completed
+	 */
+	public synchronized boolean isConnected() {
+		return connected;
+	}
+
+	/**
+	 * @return a future completing with this channel once the handshake is done
+	 */
+	synchronized CompletableFuture<TCPChannel> connectFuture() {
+		if (connected)
+			return CompletableFuture.completedFuture(this);
+		if (connectFuture == null)
+			connectFuture = new CompletableFuture<TCPChannel>();
+		return connectFuture;
+	}
+
+	/**
+	 * @return the underlying socket implementation
+	 */
+	StudentSocketImpl getSocketImpl() {
+		return sock;
+	}
+
+	/**
+	 * @return the TCPSelector operations this channel could perform right now
+	 */
+	int readyOps() {
+		int ops = 0;
+		if (sock.isReadable())
+			ops |= TCPSelector.OP_READ;
+		if (sock.isWritable())
+			ops |= TCPSelector.OP_WRITE;
+		if (isConnected())
+			ops |= TCPSelector.OP_CONNECT;
+		return ops;
+	}
+
+	synchronized void setKey(TCPSelector.Key key) {
+		this.key = key;
+	}
+
+	/**
+	 * Readiness listener of the socket. Runs under the socket's monitor, so it
+	 * only records the change and passes it on.
+	 */
+	private void socketChanged() {
+		TCPSelector.Key k;
+		CompletableFuture<TCPChannel> done = null;
+		synchronized (this) {
+			//Every state from ESTABLISHED on in the enum is past the handshake
+			if (!connected && sock.getState().compareTo(StudentSocketImpl.State.ESTABLISHED) >= 0) {
+				connected = true;
+				done = connectFuture;
+				connectFuture = null;
+			}
+			k = key;
+		}
+
+		if (done != null)
+			done.completeAsync(() -> this);
+		if (k != null)
+			k.signal();
+	}
+}
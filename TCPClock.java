@@ -0,0 +1,76 @@
+import java.util.TimerTask;
+
+//---------------------------------------------------
+//
+// class TCPClock
+//
+// where a stack gets the time and runs its timers.  every TCPStack
+// has its own.  normally that is the system clock, with a
+// java.util.Timer thread per timer.  a Simulation's stack is given the
+// Simulation instead, and everything from retransmissions to TIME_WAIT
+// then runs on its virtual time.
+//
+//---------------------------------------------------
+abstract class TCPClock {
+
+	/**
+	 * A timer that runs tasks after a delay, until it is cancelled. Once
+	 * cancelled it runs nothing more, and takes no more tasks.
+	 */
+	interface Timer {
+		void schedule(TimerTask task, long delay);
+
+		void cancel();
+	}
+
+	private static final TCPClock system = new SystemClock();
+
+	/**
+	 * @return real time, the clock of a stack that isn't given another
+	 */
+	public static TCPClock system() {
+		return system;
+	}
+
+	/**
+	 * @return the time in milliseconds, like System.currentTimeMillis()
+	 */
+	public abstract long currentTimeMillis();
+
+	/**
+	 * @return a time in nanoseconds, like System.nanoTime(): only differences
+	 *         between its values mean anything
+	 */
+	public abstract long nanoTime();
+
+	public abstract Timer newTimer();
+
+	/**
+	 * Real time.
+	 */
+	private static class SystemClock extends TCPClock {
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+
+		@Override
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+
+		@Override
+		public Timer newTimer() {
+			final java.util.Timer t = new java.util.Timer(false);
+			return new Timer() {
+				public void schedule(TimerTask task, long delay) {
+					t.schedule(task, delay);
+				}
+
+				public void cancel() {
+					t.cancel();
+				}
+			};
+		}
+	}
+}
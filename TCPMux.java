@@ -0,0 +1,623 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+//---------------------------------------------------
+//
+// class TCPMux
+//
+// many independent streams over one connection, so that a request
+// doesn't pay a handshake and a TIME_WAIT of its own, and a slow or
+// large request doesn't hold up the others.
+//
+// everything on the connection is a frame with an 8 byte header:
+//
+//   type (1)  flags (1)  length (2)  stream id (4)
+//
+// a DATA frame carries as much of one stream as fills one segment of
+// the connection, and FLAG_FIN marks the last of them.  a WINDOW frame
+// carries a 4 byte credit increment.  a frame longer than
+// MAX_FRAME_DATA can't be received, and ends the connection.  a stream starts with its first frame; the side
+// that connected numbers its streams 1, 3, 5..., the side that
+// accepted 2, 4, 6..., so both can open streams without asking.
+// first frames go out in the order of the ids (possibly empty, if
+// nothing has been written yet), so an id lower than one already seen
+// always belongs to a stream that has ended.
+//
+// flow control is per stream: a side may have at most STREAM_WINDOW
+// bytes of a stream unread at the other end, and gets credit back in
+// WINDOW frames as the reader takes data.  so the frames read off the
+// connection always fit where they are going, and a stream nobody is
+// reading stops only itself.
+//
+// streams with something to send wait their turn in a round robin
+// queue, and each turn sends one frame, sized to fit one segment.  a
+// large transfer gets no more turns than a short request next to it.
+//
+// one thread per connection reads and writes frames, waiting on a
+// TCPSelector.  stream buffers are SegmentQueues, so an idle stream
+// holds no buffer memory.
+//
+//---------------------------------------------------
+class TCPMux {
+
+	static final int DATA = 0;
+	static final int WINDOW = 1;
+
+	static final int FLAG_FIN = 1;
+
+	static final int HEADER_SIZE = 8;
+
+	//Size of the buffers frames are read into and written from
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	//Longest frame data that fits the read buffer
+	static final int MAX_FRAME_DATA = BUFFER_SIZE - HEADER_SIZE;
+
+	//Most bytes of a stream that may be sent and not yet read, and the size of each stream's send buffer
+	static final int STREAM_WINDOW = 16 * 1024;
+
+	//Credit is given back once this much has been read, not byte by byte
+	static final int WINDOW_UPDATE = STREAM_WINDOW / 2;
+
+	private final TCPChannel channel;
+	private final TCPSelector selector = new TCPSelector();
+	private final TCPSelector.Key key;
+	private final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+	private final ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+	private final int frameData; //Most data in a frame sent: a full frame fills one segment
+
+	private final HashMap<Integer, Stream> streams = new HashMap<Integer, Stream>();
+	private final LinkedList<Stream> ready = new LinkedList<Stream>(); //Streams with a frame to send, in turn
+	private final LinkedList<Stream> incoming = new LinkedList<Stream>(); //Opened by the other side, not accepted yet
+	private int nextId; //Id of the next stream opened here
+	private int lastPeerId; //Highest id of a stream opened by the other side
+	private volatile boolean closing; //close() was called
+	private boolean channelClosed; //Only touched by the I/O thread
+	private IOException failure; //Set once the connection is gone
+
+	/**
+	 * @param channel
+	 *            an established connection, used by nothing else
+	 * @param connected
+	 *            true on the side that connected, false on the side that
+	 *            accepted
+	 */
+	TCPMux(TCPChannel channel, boolean connected) {
+		this.channel = channel;
+		frameData = Math.min(Math.max(channel.getSocketImpl().getMss() - HEADER_SIZE, 1), MAX_FRAME_DATA);
+		nextId = connected ? 1 : 2;
+		key = selector.register(channel, TCPSelector.OP_READ, null);
+
+		Thread t = new Thread(this::run, "TCPMux");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Opens a multiplexed connection through the Demultiplexer started by
+	 * TCPStart.
+	 *
+	 * @param address
+	 *            the IP address of the remote host.
+	 * @param port
+	 *            the port number.
+	 * @return a future completing once the connection is established
+	 */
+	public static CompletableFuture<TCPMux> connect(InetAddress address, int port) {
+		return TCPChannel.connect(address, port).thenApply(c -> new TCPMux(c, true));
+	}
+
+	/**
+	 * Accepts a multiplexed connection.
+	 *
+	 * @param server
+	 *            the listening channel
+	 * @return a future completing with the next connection
+	 */
+	public static CompletableFuture<TCPMux> accept(TCPServerChannel server) {
+		return server.accept().thenApply(c -> new TCPMux(c, false));
+	}
+
+	/**
+	 * Opens a new stream.
+	 *
+	 * @exception IOException
+	 *                if the connection is closed
+	 */
+	public synchronized Stream openStream() throws IOException {
+		if (failure != null || closing)
+			throw new IOException("connection is closed");
+
+		Stream s = new Stream(nextId, false);
+		nextId += 2;
+		streams.put(s.id, s);
+
+		//Queued for its first frame now, while ids are handed out, so the other side sees them in order
+		s.scheduled = true;
+		ready.add(s);
+		if (ready.size() == 1)
+			selector.wakeup();
+		return s;
+	}
+
+	/**
+	 * Waits for the other side to open a stream.
+	 *
+	 * @return the stream
+	 * @exception IOException
+	 *                if the connection closes first
+	 */
+	public synchronized Stream acceptStream() throws IOException {
+		try {
+			while (incoming.isEmpty() && failure == null && !closing)
+				wait();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+
+		if (incoming.isEmpty())
+			throw new IOException("connection is closed");
+		return incoming.removeFirst();
+	}
+
+	/**
+	 * Closes the connection once every frame already queued has been sent.
+	 * Streams still open can't write any more, and reads fail unless the
+	 * stream has already ended.
+	 */
+	public void close() {
+		synchronized (this) {
+			closing = true;
+			notifyAll();
+		}
+		selector.wakeup();
+	}
+
+	/**
+	 * Gives a stream a turn at sending.
+	 */
+	private void schedule(Stream s) {
+		boolean wake;
+		synchronized (this) {
+			ready.add(s);
+			wake = ready.size() == 1; //Otherwise the I/O thread already has work
+		}
+		if (wake)
+			selector.wakeup();
+	}
+
+	/**
+	 * Body of the I/O thread: moves frames between the connection and the
+	 * streams until the other side closes.
+	 */
+	private void run() {
+		IOException cause = new IOException("connection closed");
+		try {
+			while (readFrames()) {
+				writeFrames();
+
+				int ops = TCPSelector.OP_READ;
+				synchronized (this) {
+					if (out.position() > 0 || !ready.isEmpty())
+						ops |= TCPSelector.OP_WRITE;
+				}
+				if (ops != key.interestOps())
+					key.interestOps(ops);
+				selector.select(0);
+			}
+		} catch (IOException e) {
+			cause = e;
+		} catch (InterruptedException e) {
+			cause = new InterruptedIOException();
+		}
+
+		fail(cause);
+		key.cancel();
+		if (!channelClosed)
+			channel.close();
+	}
+
+	/**
+	 * Reads and handles every complete frame that has arrived.
+	 *
+	 * @return false once the other side has closed the connection
+	 */
+	private boolean readFrames() throws IOException {
+		while (true) {
+			int n = channel.read(in);
+			in.flip();
+			while (in.remaining() >= HEADER_SIZE) {
+				int p = in.position();
+				int length = in.getShort(p + 2) & 0xffff;
+				if (length > MAX_FRAME_DATA)
+					throw new IOException("frame of " + length + " bytes on stream " + in.getInt(p + 4));
+				if (in.remaining() < HEADER_SIZE + length)
+					break;
+
+				ByteBuffer payload = in.duplicate();
+				payload.position(p + HEADER_SIZE).limit(p + HEADER_SIZE + length);
+				handleFrame(in.get(p), in.get(p + 1), in.getInt(p + 4), payload);
+				in.position(p + HEADER_SIZE + length);
+			}
+			in.compact();
+
+			if (n < 0)
+				return false;
+			if (n == 0)
+				return true;
+		}
+	}
+
+	private void handleFrame(int type, int flags, int id, ByteBuffer payload) throws IOException {
+		Stream s;
+		synchronized (this) {
+			s = streams.get(id);
+			//A new stream from the other side; ids it has used before belong to streams that have ended
+			if (s == null && (id & 1) != (nextId & 1) && id > lastPeerId && !closing) {
+				s = new Stream(id, true);
+				streams.put(id, s);
+				lastPeerId = id;
+				incoming.add(s);
+				notifyAll();
+			}
+		}
+		if (s == null)
+			return;
+
+		if (type == DATA)
+			s.received(payload, (flags & FLAG_FIN) != 0);
+		else if (type == WINDOW && payload.remaining() == 4)
+			s.credit(payload.getInt());
+		else
+			throw new IOException("bad frame type " + type + " on stream " + id);
+	}
+
+	/**
+	 * Sends frames, one per stream in turn, until there are none left or the
+	 * connection's send buffer is full.
+	 */
+	private void writeFrames() throws IOException {
+		while (true) {
+			while (out.remaining() >= HEADER_SIZE + frameData) {
+				Stream s;
+				synchronized (this) {
+					s = ready.poll();
+				}
+				if (s == null)
+					break;
+
+				if (channelClosed)
+					s.nextFrame(null); //Nothing more can go out; drops the stream's turn
+				else if (s.nextFrame(out))
+					synchronized (this) {
+						ready.add(s);
+					}
+				if (s.isDone())
+					synchronized (this) {
+						streams.remove(s.id);
+					}
+			}
+
+			if (out.position() == 0)
+				break;
+			out.flip();
+			int n = channel.write(out);
+			out.compact();
+			if (n == 0)
+				break;
+		}
+
+		boolean idle;
+		synchronized (this) {
+			idle = ready.isEmpty();
+		}
+		if (closing && !channelClosed && idle && out.position() == 0) {
+			channel.close();
+			channelClosed = true;
+		}
+	}
+
+	/**
+	 * Ends every stream that hasn't ended yet with an error.
+	 */
+	private void fail(IOException e) {
+		List<Stream> all;
+		synchronized (this) {
+			failure = e;
+			all = new ArrayList<Stream>(streams.values());
+			streams.clear();
+			ready.clear();
+			incoming.clear();
+			notifyAll();
+		}
+		for (Stream s : all)
+			s.fail(e);
+	}
+
+	/**
+	 * One stream of a TCPMux connection: a pair of byte streams, each with
+	 * its own end, like the two directions of a Socket.
+	 */
+	class Stream {
+		private final int id;
+		private final SegmentQueue sendQueue = new SegmentQueue(STREAM_WINDOW, SegmentPool.getDefault());
+		private final SegmentQueue recvQueue = new SegmentQueue(STREAM_WINDOW, SegmentPool.getDefault());
+		private final InputStream appIS = new StreamInputStream();
+		private final OutputStream appOS = new StreamOutputStream();
+
+		private int sendCredit = STREAM_WINDOW; //Bytes the other side has room for
+		private int unannounced; //Bytes read (or thrown away) here, not yet given back as credit
+		private boolean outputClosed; //No more writes; FIN goes out after the data
+		private boolean inputClosed; //Received data is thrown away
+		private boolean finSent;
+		private boolean finReceived;
+		private boolean opened; //The other side knows of the stream
+		private boolean scheduled; //In the mux's ready queue
+		private IOException failure;
+
+		private Stream(int id, boolean opened) {
+			this.id = id;
+			this.opened = opened;
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public InputStream getInputStream() {
+			return appIS;
+		}
+
+		public OutputStream getOutputStream() {
+			return appOS;
+		}
+
+		/**
+		 * Ends this side's data. The other side reads the end of the stream
+		 * after everything already written.
+		 */
+		public void shutdownOutput() {
+			boolean turn;
+			synchronized (this) {
+				outputClosed = true;
+				turn = takeTurn();
+			}
+			if (turn)
+				schedule(this);
+		}
+
+		/**
+		 * Ends this side's data, and throws away anything received, now or
+		 * later. The stream is gone once the other side ends its data too.
+		 */
+		public void close() {
+			boolean turn;
+			synchronized (this) {
+				outputClosed = true;
+				inputClosed = true;
+				unannounced += recvQueue.size();
+				recvQueue.clear();
+				notifyAll();
+				turn = takeTurn();
+			}
+			if (turn)
+				schedule(this);
+		}
+
+		/**
+		 * @return true if the stream has a frame to send and isn't queued yet,
+		 *         in which case it counts as queued from now on
+		 */
+		private boolean takeTurn() {
+			if (scheduled || !hasFrame())
+				return false;
+			scheduled = true;
+			return true;
+		}
+
+		private boolean hasFrame() {
+			if (failure != null)
+				return false;
+			if (!opened)
+				return true;
+			if (unannounced >= WINDOW_UPDATE && !finReceived)
+				return true;
+			if (finSent)
+				return false;
+			return (sendQueue.size() > 0 && sendCredit > 0) || (outputClosed && sendQueue.size() == 0);
+		}
+
+		/**
+		 * Writes this stream's next frame. Called by the I/O thread when it is
+		 * the stream's turn.
+		 *
+		 * @param dst
+		 *            buffer with room for a full frame, or null to drop the turn
+		 * @return true if the stream has another frame to send, and stays
+		 *         queued
+		 */
+		synchronized boolean nextFrame(ByteBuffer dst) {
+			if (dst != null && hasFrame()) {
+				if (unannounced >= WINDOW_UPDATE && !finReceived) {
+					dst.put((byte) WINDOW).put((byte) 0).putShort((short) 4).putInt(id).putInt(unannounced);
+					unannounced = 0;
+				} else {
+					int n = Math.min(frameData, Math.min(sendQueue.size(), sendCredit));
+					boolean fin = outputClosed && n == sendQueue.size();
+					dst.put((byte) DATA).put((byte) (fin ? FLAG_FIN : 0)).putShort((short) n).putInt(id);
+
+					int limit = dst.limit();
+					dst.limit(dst.position() + n);
+					sendQueue.read(dst);
+					dst.limit(limit);
+
+					sendCredit -= n;
+					finSent = fin;
+					opened = true;
+					notifyAll(); //Writers waiting for room
+				}
+			}
+
+			scheduled = dst != null && hasFrame();
+			return scheduled;
+		}
+
+		synchronized boolean isDone() {
+			return finSent && finReceived;
+		}
+
+		/**
+		 * Takes the data of a DATA frame.
+		 */
+		void received(ByteBuffer data, boolean fin) throws IOException {
+			boolean turn;
+			synchronized (this) {
+				if (finReceived)
+					throw new IOException("data after the end of stream " + id);
+				if (data.remaining() > recvQueue.free() - unannounced)
+					throw new IOException("stream " + id + " overran its window");
+
+				if (inputClosed)
+					unannounced += data.remaining();
+				else
+					recvQueue.write(data);
+				finReceived = fin;
+				notifyAll();
+				turn = takeTurn();
+			}
+			if (turn)
+				schedule(this);
+
+			if (isDone())
+				synchronized (TCPMux.this) {
+					streams.remove(id);
+				}
+		}
+
+		/**
+		 * Takes the increment of a WINDOW frame.
+		 */
+		void credit(int n) {
+			boolean turn;
+			synchronized (this) {
+				sendCredit += n;
+				turn = takeTurn();
+			}
+			if (turn)
+				schedule(this);
+		}
+
+		synchronized void fail(IOException e) {
+			if (failure == null)
+				failure = e;
+			if (!finReceived)
+				recvQueue.clear();
+			sendQueue.clear();
+			notifyAll();
+		}
+
+		/**
+		 * Reads block until data arrives or the stream ends.
+		 */
+		private class StreamInputStream extends InputStream {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xff);
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0)
+					return 0;
+
+				int n;
+				boolean turn;
+				synchronized (Stream.this) {
+					try {
+						while (recvQueue.size() == 0 && !finReceived && !inputClosed && failure == null)
+							Stream.this.wait();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+
+					if (recvQueue.size() == 0) {
+						if (finReceived || inputClosed)
+							return -1;
+						throw new IOException("stream " + id + ": " + failure.getMessage());
+					}
+
+					n = recvQueue.read(b, off, len);
+					unannounced += n;
+					turn = takeTurn();
+				}
+				if (turn)
+					schedule(Stream.this);
+				return n;
+			}
+
+			@Override
+			public int available() {
+				synchronized (Stream.this) {
+					return recvQueue.size();
+				}
+			}
+
+			@Override
+			public void close() {
+				Stream.this.close();
+			}
+		}
+
+		/**
+		 * Writes block until all the bytes fit in the stream's send buffer.
+		 */
+		private class StreamOutputStream extends OutputStream {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				while (len > 0) {
+					boolean turn;
+					synchronized (Stream.this) {
+						try {
+							while (sendQueue.free() == 0 && failure == null && !outputClosed)
+								Stream.this.wait();
+						} catch (InterruptedException e) {
+							throw new InterruptedIOException();
+						}
+
+						if (failure != null)
+							throw new IOException("stream " + id + ": " + failure.getMessage());
+						if (outputClosed || closing)
+							throw new IOException("stream " + id + " is closed");
+
+						int n = sendQueue.write(b, off, len);
+						off += n;
+						len -= n;
+						turn = takeTurn();
+					}
+					if (turn)
+						schedule(Stream.this);
+				}
+			}
+
+			@Override
+			public void close() {
+				shutdownOutput();
+			}
+		}
+	}
+}
@@ -1,4 +1,5 @@
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 //---------------------------------------------------
 //
@@ -12,9 +13,15 @@ import java.net.InetAddress;
 // either you have all the info you need to initialize a packet, or you
 // have a byte[] to read in.
 //
-// This implementation of TCPPacket will ignore options in the header,
-// and will also ignore the checksum, push flag, urgent flag and urgent
-// pointer.
+// This implementation of TCPPacket will ignore the checksum, push
+// flag, urgent flag and urgent pointer.  options are kept as the raw
+// bytes between the 20 byte header and the data (see addOption() and
+// getOption()).
+//
+// a packet's data is either in the data array, or in a pooled
+// SegmentBuffer (see attachSegment() and the SegmentBuffer
+// constructor), never both.  use getDataLength() rather than
+// data.length.
 //
 //---------------------------------------------------
 
@@ -45,8 +52,24 @@ class TCPPacket {
     public static final int BYTE4 = 0xff000000;
 
 
-    // constant for everyone to know the maximum possible packet size
+    // constant for everyone to know the default maximum packet size:
+    // the most data a packet carries unless the MSS option says otherwise
     public static final int MAX_PACKET_SIZE = 1000; // in bytes
+
+    // the most data a packet can ever carry: a UDP datagram holds 65507
+    // bytes over IPv4, less the 20 byte header
+    public static final int UDP_MAX_DATA = 65507 - 20;
+
+    // the smallest MSS: every TCP takes packets of this much data (RFC 879)
+    public static final int MIN_MSS = 536;
+
+    // option kinds with no length byte
+    public static final int OPTION_END = 0;
+    public static final int OPTION_NOP = 1;
+
+    // maximum segment size option, carried by SYNs: the most data the
+    // sender takes in one packet, in 2 bytes
+    public static final int OPTION_MSS = 2;
     
     // TCP header things to keep in the packet
     InetAddress sourceAddr;
@@ -65,7 +88,19 @@ class TCPPacket {
     // be sure to NOT read possible header options into the data buf.
     protected byte[] data;
 
+    // the off-heap segment holding this packet's data (and room for
+    // its header), or null if the data is in the data array.
+    private SegmentBuffer segment;
+
+    // for a packet whose data is in the array: when it last went out
+    // (see TCPWrapper.sent()).  a segment's is in the SegmentBuffer.
+    volatile long sentTime;
+
     
+    // the options after the 20 byte header, padded to a multiple of 4
+    // bytes, or null if there are none.
+    private byte[] options;
+
     // private because we dont want them to be messed with accidentally
     private int headerLength;
     private int checksum;  // we dont bother with this quite yet
@@ -121,6 +156,11 @@ class TCPPacket {
             (((char)(packet[17])) & BYTE1);
 
 
+        if (headerLength>20 && headerLength<=packet.length) {
+            options = new byte[headerLength-20];
+            System.arraycopy(packet, 20, options, 0, options.length);
+        }
+
         // copy the data, if any
         int j=0;
         int dataSize=(packet.length-headerLength);
@@ -136,6 +176,43 @@ class TCPPacket {
     }
 
     
+    // creates a TCPPacket from a received segment, without copying
+    // the data out of it.  the segment's data area is set to the TCP
+    // data.  the packet does not hold a reference: whoever keeps the
+    // segment past the receive must retain() it.
+    public TCPPacket( SegmentBuffer seg, int length, InetAddress sender ) {
+        ByteBuffer b = seg.buffer();
+        sourceAddr = sender;
+        sourcePort = b.getChar(0);
+        destPort = b.getChar(2);
+        seqNum = b.getInt(4);
+        ackNum = b.getInt(8);
+        headerLength = ((b.get(12) >> 4) & 0x0f)*4;
+
+        byte flags = b.get(13);
+        ackFlag = (flags & BIT5)!=0;
+        rstFlag = (flags & BIT3)!=0;
+        synFlag = (flags & BIT2)!=0;
+        finFlag = (flags & BIT1)!=0;
+
+        windowSize = b.getChar(14);
+        checksum = b.getChar(16);
+
+        if (headerLength>20 && headerLength<=length) {
+            options = new byte[headerLength-20];
+            ByteBuffer o = b.duplicate();
+            o.position(20);
+            o.get(options);
+        }
+
+        data = null;
+        seg.payloadStart = Math.min(headerLength, length);
+        seg.payloadEnd = length;
+        seg.seq = seqNum;
+        segment = seg;
+    }
+
+    
     // creates a TCPPacket from values given here. will usually be used
     // when SENDING a packet.
     public TCPPacket( int sourcePort, int destPort, int seqNum, int ackNum,
@@ -157,22 +234,126 @@ class TCPPacket {
 	  this.data = null;
         
         this.rstFlag = false;
-        this.headerLength = 20; // no options, so will always be 20 bytes.
+        this.headerLength = 20; // no options until addOption()
         
         this.checksum = 0; // WILL SET WHEN WE WRITE THE PACKET.
     }
     
     
-    // returns the whole packet as an array.  this array can then be
-    // used in a DatagramPacket, for example.
-    public byte[] getBufferPacket () {
-        // TCP Header that we create will ALWAYS be 20 bytes
-        byte packet[];
-        if (data==null)
-            packet = new byte[20];
-        else
-            packet = new byte[20+data.length];
+    // adds an option to the header, after any already there.  only for
+    // packets whose data is in the data array: a pooled segment has
+    // room in front of its data for a plain 20 byte header.
+    public void addOption( int kind, byte[] value ) {
+        int used = 0;
+        if (options!=null) // everything up to the padding
+            used = optionsEnd();
+        
+        byte[] grown = new byte[(used+2+value.length+3)/4*4];
+        if (options!=null)
+            System.arraycopy(options, 0, grown, 0, used);
+        grown[used] = (byte) kind;
+        grown[used+1] = (byte) (2+value.length);
+        System.arraycopy(value, 0, grown, used+2, value.length);
+        for (int i=used+2+value.length; i<grown.length; i++)
+            grown[i] = (byte) OPTION_NOP;
+
+        options = grown;
+        headerLength = 20+options.length;
+    }
+
+    // the value of the first option of this kind (possibly empty), or
+    // null if the header has none.
+    public byte[] getOption( int kind ) {
+        if (options==null)
+            return(null);
+        int i = 0;
+        while (i<options.length) {
+            int k = options[i] & 0xff;
+            if (k==OPTION_END)
+                break;
+            if (k==OPTION_NOP) {
+                i++;
+                continue;
+            }
+            if (i+1>=options.length)
+                break;
+            int len = options[i+1] & 0xff;
+            if (len<2 || i+len>options.length) // malformed
+                break;
+            if (k==kind) {
+                byte[] value = new byte[len-2];
+                System.arraycopy(options, i+2, value, 0, value.length);
+                return(value);
+            }
+            i += len;
+        }
+        return(null);
+    }
 
+    // adds the MSS option.
+    public void addMss( int mss ) {
+        addOption(OPTION_MSS, new byte[] { (byte) (mss>>8), (byte) mss });
+    }
+
+    // the value of the MSS option, or MAX_PACKET_SIZE if the header has
+    // none: a peer that doesn't send it takes packets of that size.
+    public int getMss() {
+        byte[] value = getOption(OPTION_MSS);
+        if (value==null || value.length!=2)
+            return(MAX_PACKET_SIZE);
+        return(((value[0] & 0xff)<<8) | (value[1] & 0xff));
+    }
+
+    // where the last option ends, before the padding after it.
+    private int optionsEnd() {
+        int i = 0, end = 0;
+        while (i<options.length) {
+            int k = options[i] & 0xff;
+            if (k==OPTION_END)
+                break;
+            if (k==OPTION_NOP) {
+                i++;
+                continue;
+            }
+            if (i+1>=options.length || (options[i+1] & 0xff)<2)
+                break;
+            i += options[i+1] & 0xff;
+            end = i;
+        }
+        return(Math.min(end, options.length));
+    }
+
+    // length of the header, options included, in bytes.
+    public int getHeaderLength() {
+        return(headerLength);
+    }
+
+    // makes a segment, filled in by the caller, this packet's data.
+    // the segment must have its 20 byte header area free in front of
+    // the data; TCPWrapper.send() will write the header there.  the
+    // packet does not take a reference to the segment.
+    public void attachSegment( SegmentBuffer seg ) {
+        data = null;
+        segment = seg;
+    }
+
+    // the segment holding this packet's data, or null.
+    public SegmentBuffer getSegment() {
+        return(segment);
+    }
+
+    // number of data bytes, wherever they are.
+    public int getDataLength() {
+        if (segment!=null)
+            return(segment.payloadLength());
+        if (data!=null)
+            return(data.length);
+        return(0);
+    }
+
+    // writes the TCP header, 20 bytes plus any options, at the start of
+    // the buffer.
+    public void writeHeader( ByteBuffer b ) {
         int flags = 0;
         if (ackFlag)
             flags = flags|BIT5;
@@ -184,32 +365,36 @@ class TCPPacket {
             flags = flags|BIT1;
 
         
-        packet[0] = (byte) (sourcePort>>8);
-        packet[1] = (byte)  sourcePort;
-        packet[2] = (byte) (destPort>>8);
-        packet[3] = (byte)  destPort;
-        packet[4] = (byte) (seqNum>>24);
-        packet[5] = (byte) (seqNum>>16);
-        packet[6] = (byte) (seqNum>>8);
-        packet[7] = (byte)  seqNum;
-        packet[8] = (byte) (ackNum>>24);
-        packet[9] = (byte) (ackNum>>16);
-        packet[10] =(byte) (ackNum>>8);
-        packet[11] =(byte)  ackNum;
-        packet[12] =(byte) ((headerLength/4)<<4);
-        packet[13] = (byte)  flags;
-        packet[14] = (byte) (windowSize>>8);
-        packet[15] = (byte)  windowSize;
-        packet[16] = (byte) (checksum>>8);
-        packet[17] = (byte)  checksum;
-        packet[18] = 0;
-        packet[19] = 0;
+        b.putChar(0, (char) sourcePort);
+        b.putChar(2, (char) destPort);
+        b.putInt(4, seqNum);
+        b.putInt(8, ackNum);
+        b.put(12, (byte) ((headerLength/4)<<4));
+        b.put(13, (byte) flags);
+        b.putChar(14, (char) windowSize);
+        b.putChar(16, (char) checksum);
+        b.putChar(18, (char) 0);
+
+        if (options!=null)
+            for (int i=0; i<options.length; i++)
+                b.put(20+i, options[i]);
+    }
+
+    // returns the whole packet as an array.  this array can then be
+    // used in a DatagramPacket, for example.
+    public byte[] getBufferPacket () {
+        // 20 bytes of TCP header, plus the options if there are any
+        byte packet[] = new byte[headerLength+getDataLength()];
+
+        writeHeader(ByteBuffer.wrap(packet));
 
-        
         // add data to packet, if needed
+        if (segment!=null)
+            segment.payload().get(packet, headerLength, segment.payloadLength());
+
         if (data!=null) {
             for (int i=0; i<data.length; i++) {
-                packet[i+20] = data[i];
+                packet[i+headerLength] = data[i];
             }
         }
 
@@ -217,7 +402,8 @@ class TCPPacket {
     }
 
     // returns ONLY the data part of the packet
-    // is possible that it may return null.
+    // is possible that it may return null (always does, if the data is
+    // in a segment - see getSegment()).
     public byte[] getData() {
         return(data);
     }
@@ -250,9 +436,9 @@ class TCPPacket {
             "\n ----------------- "+
             "\n checksum = "+checksum+
             "\n headerLength = "+headerLength;
-        if (data!=null)
+        if (getDataLength()>0)
             toReturn = toReturn +
-                "\n datalen = "+data.length;
+                "\n datalen = "+getDataLength();
         else
             toReturn = toReturn +
                 "\n data is null";
@@ -284,8 +470,8 @@ class TCPPacket {
         String output = "    "+"srcPort="+ sourcePort+" destPort="+destPort+
             " seq="+seqNum+" ack="+ackNum+flags+" wndSize="+windowSize;
 
-        if (data!=null){
-	  output = output+" datalen="+data.length;
+        if (getDataLength()>0){
+	  output = output+" datalen="+getDataLength();
 	}
         else
 	  output = output+" (no data)";
@@ -0,0 +1,198 @@
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+//---------------------------------------------------
+//
+// class TCPSelector
+//
+// lets one thread wait for any of many TCPChannels to become readable
+// or writable.
+//
+// channels push their registration Key onto a ready queue whenever a
+// packet or timer touches their socket, so select() only looks at
+// channels something has happened to - never at every channel
+// registered.  a key select() returned is looked at again by the next
+// select(), so a channel that still has data left after a partial
+// read is reported again (level triggered, like java.nio).
+//
+//---------------------------------------------------
+class TCPSelector {
+
+	// same values as java.nio.channels.SelectionKey
+	public static final int OP_READ = 1 << 0;
+	public static final int OP_WRITE = 1 << 2;
+	public static final int OP_CONNECT = 1 << 3;
+
+	/**
+	 * A channel's registration with this selector.
+	 */
+	class Key {
+		private final TCPChannel channel;
+		private volatile int interestOps;
+		private volatile int readyOps;
+		private volatile boolean cancelled;
+		private boolean queued; //guarded by the selector
+		private Object attachment;
+
+		private Key(TCPChannel channel, int interestOps, Object attachment) {
+			this.channel = channel;
+			this.interestOps = interestOps;
+			this.attachment = attachment;
+		}
+
+		public TCPChannel channel() {
+			return channel;
+		}
+
+		public Object attachment() {
+			return attachment;
+		}
+
+		public int interestOps() {
+			return interestOps;
+		}
+
+		/**
+		 * Changes the operations to wait for. The channel is looked at again by
+		 * the next select().
+		 */
+		public void interestOps(int ops) {
+			interestOps = ops;
+			signal();
+		}
+
+		/**
+		 * @return the operations found ready by the select() that returned this
+		 *         key
+		 */
+		public int readyOps() {
+			return readyOps;
+		}
+
+		public boolean isReadable() {
+			return (readyOps & OP_READ) != 0;
+		}
+
+		public boolean isWritable() {
+			return (readyOps & OP_WRITE) != 0;
+		}
+
+		public boolean isConnectable() {
+			return (readyOps & OP_CONNECT) != 0;
+		}
+
+		/**
+		 * Removes the channel from the selector.
+		 */
+		public void cancel() {
+			cancelled = true;
+			channel.setKey(null);
+		}
+
+		/**
+		 * Marks the channel as worth looking at. Called by the channel when its
+		 * socket changes.
+		 */
+		void signal() {
+			synchronized (TCPSelector.this) {
+				if (queued || cancelled)
+					return;
+				queued = true;
+				readyQueue.add(this);
+				TCPSelector.this.notifyAll();
+			}
+		}
+	}
+
+	private final LinkedList<Key> readyQueue = new LinkedList<Key>();
+	private List<Key> lastSelected = new ArrayList<Key>();
+	private boolean woken;
+
+	/**
+	 * Registers a channel.
+	 *
+	 * @param channel
+	 *            the channel
+	 * @param ops
+	 *            the operations to wait for (OP_READ, OP_WRITE, OP_CONNECT)
+	 * @param attachment
+	 *            anything the caller wants to get back from the key
+	 * @return the key that select() will return for the channel
+	 */
+	public Key register(TCPChannel channel, int ops, Object attachment) {
+		Key key = new Key(channel, ops, attachment);
+		channel.setKey(key);
+		key.signal(); //The channel may already be ready
+		return key;
+	}
+
+	/**
+	 * Waits until at least one registered channel is ready for an operation it
+	 * was registered for.
+	 *
+	 * @param timeout
+	 *            longest time to wait in milliseconds, or 0 to wait forever
+	 * @return the ready keys, empty on timeout or wakeup()
+	 */
+	public List<Key> select(long timeout) throws InterruptedException {
+		long deadline = timeout == 0 ? Long.MAX_VALUE : System.currentTimeMillis() + timeout;
+
+		//Level triggered: whatever was ready last time gets looked at again
+		for (Key k : lastSelected)
+			k.signal();
+
+		List<Key> selected = new ArrayList<Key>();
+		while (selected.isEmpty()) {
+			List<Key> candidates = new ArrayList<Key>();
+			synchronized (this) {
+				long now = System.currentTimeMillis();
+				while (readyQueue.isEmpty() && !woken && now < deadline) {
+					wait(deadline == Long.MAX_VALUE ? 0 : deadline - now);
+					now = System.currentTimeMillis();
+				}
+				if (readyQueue.isEmpty()) //Timed out or woken up
+					break;
+				for (Key k : readyQueue)
+					k.queued = false;
+				candidates.addAll(readyQueue);
+				readyQueue.clear();
+			}
+
+			//The channels' sockets are looked at without holding the selector, since they call into it
+			for (Key k : candidates) {
+				if (k.cancelled)
+					continue;
+				int ops = k.channel.readyOps() & k.interestOps;
+				if (ops != 0) {
+					k.readyOps = ops;
+					selected.add(k);
+				}
+			}
+		}
+
+		synchronized (this) {
+			woken = false; //Like java.nio, any return from select() uses up a wakeup()
+		}
+		lastSelected = selected;
+		return selected;
+	}
+
+	/**
+	 * @return the ready keys, without waiting
+	 */
+	public List<Key> selectNow() throws InterruptedException {
+		synchronized (this) {
+			woken = true; //Makes select() return as soon as it has looked at the queue
+		}
+		return select(0);
+	}
+
+	/**
+	 * Makes a select() in progress (or the next one) return.
+	 */
+	public synchronized void wakeup() {
+		woken = true;
+		notifyAll();
+	}
+}
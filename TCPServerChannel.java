@@ -0,0 +1,125 @@
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+
+//---------------------------------------------------
+//
+// class TCPServerChannel
+//
+// the non-blocking counterpart of a ServerSocket.  accept() returns a
+// CompletableFuture right away; the futures complete in the order they
+// were asked for, as connections arrive.
+//
+// like ServerSocket.accept(), only one socket at a time sits in LISTEN
+// for the port (that is all the Demultiplexer's listeningTable holds).
+// when it is connected, the next waiting accept() gets a socket in
+// LISTEN.
+//
+//---------------------------------------------------
+class TCPServerChannel {
+
+	private final Demultiplexer D;
+	private final int port;
+	private final LinkedList<CompletableFuture<TCPChannel>> pending;
+	private TCPChannel listening; //the channel whose socket is in LISTEN, if any
+	private boolean closed;
+
+	private TCPServerChannel(Demultiplexer D, int port) {
+		this.D = D;
+		this.port = port;
+		pending = new LinkedList<CompletableFuture<TCPChannel>>();
+	}
+
+	/**
+	 * Opens a listening channel through the Demultiplexer started by TCPStart.
+	 *
+	 * @see #open(Demultiplexer, int, int)
+	 */
+	public static TCPServerChannel open(int port, int backlog) {
+		return open(TCPStart.getDemultiplexer(), port, backlog);
+	}
+
+	/**
+	 * Opens a listening channel.
+	 *
+	 * @param D
+	 *            the Demultiplexer to listen through
+	 * @param port
+	 *            the local port to accept connections on
+	 * @param backlog
+	 *            the maximum number of connections queued by SYN cookies
+	 * @return the channel
+	 */
+	public static TCPServerChannel open(Demultiplexer D, int port, int backlog) {
+		D.registerListenPort(port, backlog);
+		return new TCPServerChannel(D, port);
+	}
+
+	/**
+	 * Asks for the next incoming connection.
+	 *
+	 * @return a future completing with the connected channel
+	 */
+	public synchronized CompletableFuture<TCPChannel> accept() {
+		CompletableFuture<TCPChannel> future = new CompletableFuture<TCPChannel>();
+		if (closed) {
+			future.completeExceptionally(new IOException("channel is closed"));
+			return future;
+		}
+
+		pending.add(future);
+		if (listening == null)
+			listenNext();
+		return future;
+	}
+
+	/**
+	 * Stops listening. Accepts still waiting fail; connections already
+	 * accepted are not affected.
+	 */
+	public void close() throws IOException {
+		TCPChannel stillListening;
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			stillListening = listening;
+			listening = null;
+
+			for (CompletableFuture<TCPChannel> f : pending)
+				f.completeExceptionally(new IOException("channel is closed"));
+			pending.clear();
+		}
+
+		if (stillListening != null)
+			stillListening.getSocketImpl().close();
+		D.unregisterListenPort(port);
+	}
+
+	/**
+	 * Puts a new socket in LISTEN for the oldest waiting accept().
+	 */
+	private void listenNext() {
+		final TCPChannel channel = new TCPChannel(new StudentSocketImpl(D));
+		listening = channel;
+
+		final CompletableFuture<TCPChannel> future = pending.getFirst();
+		channel.connectFuture().thenAccept(c -> accepted(future, c));
+		try {
+			channel.getSocketImpl().startAccept(port);
+		} catch (IOException e) {
+			listening = null;
+			pending.removeFirst();
+			future.completeExceptionally(e);
+		}
+	}
+
+	private synchronized void accepted(CompletableFuture<TCPChannel> future, TCPChannel channel) {
+		if (listening == channel)
+			listening = null;
+		if (pending.remove(future))
+			future.complete(channel);
+		if (!closed && listening == null && !pending.isEmpty())
+			listenNext();
+	}
+}
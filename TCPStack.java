@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+
+//---------------------------------------------------
+//
+// class TCPStack
+//
+// one whole, independent instance of the TCP implementation: its own
+// TCPWrapper (UDP ports, rate limit, packet dropping, counters, sender
+// threads), its own Demultiplexer (receive threads, connection tables,
+// ephemeral ports, TIME_WAIT, SYN cookies, Fast Open, pacing) and its
+// own TCPClock.  nothing one stack does is seen by another, so any
+// number of them can run side by side in one JVM: a server sharded
+// over several UDP ports, or benchmarks run in parallel.
+//
+// a stack receives on its own range of UDP ports, and sends to the
+// range the other side receives on.  the two are the same port when
+// both ends run on the same port (as TCPStart has it), and differ for
+// two stacks in one JVM talking to each other.
+//
+// a stack's connections are made through its Demultiplexer: with
+// connect() and listen() here, or TCPChannel, TCPServerChannel, TCPMux
+// and ConnectionPool given getDemultiplexer().  java.net.Socket and
+// ServerSocket know only one SocketImplFactory per JVM; install() makes
+// it this stack's, which is what TCPStart does with the stack it
+// creates.
+//
+// the segment pools (see SegmentPool) are the one thing stacks share:
+// they are just free lists of buffers, and stacks with the same
+// segment size draw from the same one.
+//
+//---------------------------------------------------
+class TCPStack {
+
+	private final TCPClock clock;
+	private final TCPWrapper wrapper;
+	private final Demultiplexer D;
+	private final StudentSocketImplFactory factory;
+
+	/**
+	 * A stack on real time that receives on the same ports it sends to.
+	 *
+	 * @param portForUDP
+	 *            the first UDP port
+	 * @param portCount
+	 *            how many consecutive UDP ports, from portForUDP on
+	 */
+	TCPStack(int portForUDP, int portCount) {
+		this(TCPClock.system(), portForUDP, portForUDP, portCount);
+	}
+
+	/**
+	 * @param clock
+	 *            the clock every timer of the stack runs on
+	 * @param receivePort
+	 *            the first UDP port to receive on
+	 * @param sendPort
+	 *            the first UDP port the other side receives on
+	 * @param portCount
+	 *            how many consecutive UDP ports, from each of those on; both
+	 *            sides must use the same count
+	 */
+	TCPStack(TCPClock clock, int receivePort, int sendPort, int portCount) {
+		this.clock = clock;
+		wrapper = new TCPWrapper(clock);
+		wrapper.setUDPPortNumber(sendPort);
+		wrapper.setReceivePortCount(portCount);
+		D = new Demultiplexer(wrapper, clock, receivePort, portCount);
+		factory = new StudentSocketImplFactory(D);
+	}
+
+	/**
+	 * Starts the receive threads. The Demultiplexer's settings must be made
+	 * before this.
+	 */
+	public void start() {
+		D.start();
+	}
+
+	public TCPClock getClock() {
+		return clock;
+	}
+
+	public TCPWrapper getWrapper() {
+		return wrapper;
+	}
+
+	public Demultiplexer getDemultiplexer() {
+		return D;
+	}
+
+	/**
+	 * @return a factory of SocketImpls on this stack
+	 */
+	public StudentSocketImplFactory getSocketImplFactory() {
+		return factory;
+	}
+
+	/**
+	 * Makes every java.net.Socket and ServerSocket of the JVM use this stack.
+	 * Can only be done once per JVM.
+	 *
+	 * @exception IOException
+	 *                if a factory has already been installed
+	 */
+	public void install() throws IOException {
+		Socket.setSocketImplFactory(factory);
+		ServerSocket.setSocketFactory(factory);
+	}
+
+	/**
+	 * Starts opening a connection from this stack.
+	 *
+	 * @see TCPChannel#connect(Demultiplexer, InetAddress, int)
+	 */
+	public CompletableFuture<TCPChannel> connect(InetAddress address, int port) {
+		return TCPChannel.connect(D, address, port);
+	}
+
+	/**
+	 * Opens a listening channel on this stack.
+	 *
+	 * @see TCPServerChannel#open(Demultiplexer, int, int)
+	 */
+	public TCPServerChannel listen(int port, int backlog) {
+		return TCPServerChannel.open(D, port, backlog);
+	}
+}
@@ -6,7 +6,9 @@ import java.net.*;
 // class TCPStart
 //
 // this is the hub of the entire socket implementation.
-// all modules are initialized here.
+// the TCPStack that java.net.Socket and ServerSocket use is created
+// and configured here, from system properties.  (more stacks can be
+// created alongside it; see TCPStack.)
 //
 //
 // code that runs on TOP of this whole implementation will
@@ -21,6 +23,27 @@ class TCPStart {
     
   public final static String PORTRESOURCE = "UDPPORT";
   public final static String LOSSRATERESOURCE = "LOSSRATE";
+  public final static String SYNCOOKIESRESOURCE = "SYNCOOKIES";
+  public final static String PORTCOUNTRESOURCE = "UDPPORTCOUNT";
+  public final static String RECVBATCHRESOURCE = "RECVBATCH";
+  public final static String PCAPRESOURCE = "PCAPFILE";
+  public final static String FASTOPENRESOURCE = "FASTOPEN";
+  public final static String SENDERTHREADSRESOURCE = "SENDERTHREADS";
+  public final static String CONGESTIONRESOURCE = "CONGESTION";
+  public final static String MSSRESOURCE = "MSS";
+  public final static String COMPRESSIONRESOURCE = "COMPRESSION";
+
+  // the stack created by start(), for code (like TCPChannel) that
+  // doesn't go through the SocketImplFactory.
+  private static TCPStack stack;
+
+  static public TCPStack getStack() {
+    return stack;
+  }
+
+  static public Demultiplexer getDemultiplexer() {
+    return stack.getDemultiplexer();
+  }
 
   static public void start() {
 
@@ -37,26 +60,68 @@ class TCPStart {
     int portForUDP = Integer.parseInt(System.getProperty(PORTRESOURCE));
 
         
-    // initialize TCPWrapper's port number for UDP wrapping
-    TCPWrapper.setUDPPortNumber( portForUDP );
+    // receive on UDPPORTCOUNT consecutive ports from UDPPORT on, one
+    // thread each.  both sides must use the same count.
+    int portCount = 1;
+    if (System.getProperty(PORTCOUNTRESOURCE)!=null)
+      portCount = Integer.parseInt(System.getProperty(PORTCOUNTRESOURCE));
+
+    // create the stack, sending to and receiving on those ports
+    stack = new TCPStack( portForUDP, portCount );
+    TCPWrapper wrapper = stack.getWrapper();
+    Demultiplexer D = stack.getDemultiplexer();
+
+    // transmit queued packets on SENDERTHREADS threads
+    if (System.getProperty(SENDERTHREADSRESOURCE)!=null)
+      wrapper.setSenderThreads(Integer.parseInt(System.getProperty(SENDERTHREADSRESOURCE)));
 
         
     // initialize more TCPWrapper stuff here, if you want to test packet
     // dropping, or if you want to change the sending-rate limit
 
-        
-    // create an instance of the Demultiplexer
-    Demultiplexer D = new Demultiplexer( portForUDP );
 
-    // create an instance of OUR SocketImplFactory
-    StudentSocketImplFactory myFactory = new StudentSocketImplFactory(D);
-        
+    // drain up to RECVBATCH waiting datagrams per wakeup
+    if (System.getProperty(RECVBATCHRESOURCE)!=null)
+      D.setReceiveBatchSize(Integer.parseInt(System.getProperty(RECVBATCHRESOURCE)));
+
+    // answer SYNs statelessly when no socket is waiting in accept()
+    if (Boolean.parseBoolean(System.getProperty(SYNCOOKIESRESOURCE)))
+      D.setSynCookies(true);
+
+    // send data in SYNs to servers we have a Fast Open cookie for, and
+    // accept it in SYNs to our listeners
+    if (Boolean.parseBoolean(System.getProperty(FASTOPENRESOURCE)))
+      D.setFastOpen(true);
+
+    // congestion control for every connection: NONE or BBR
+    if (System.getProperty(CONGESTIONRESOURCE)!=null)
+      D.setCongestionControl(StudentSocketImpl.CongestionControl.valueOf
+                             (System.getProperty(CONGESTIONRESOURCE).toUpperCase()));
+
+    // compress the streams of connections whose other side does too
+    if (Boolean.parseBoolean(System.getProperty(COMPRESSIONRESOURCE)))
+      D.setCompression(true);
+
+    // largest segment to offer, up to the UDP limit
+    if (System.getProperty(MSSRESOURCE)!=null)
+      D.setMaxSegmentSize(Integer.parseInt(System.getProperty(MSSRESOURCE)));
+
+    // write every segment sent and received to PCAPFILE
+    if (System.getProperty(PCAPRESOURCE)!=null) {
+      try {
+        wrapper.setCapture(new PcapWriter(System.getProperty(PCAPRESOURCE),
+                                          PcapWriter.DEFAULT_BUFFER_SIZE));
+      } catch (Exception e) {
+        System.out.println(e);
+        System.exit(1);
+      }
+    }
 
     // tell all Socket objects of this program to use OUR
-    // implementation of SockImpl
+    // implementation of SockImpl, through the stack's
+    // SocketImplFactory
     try {
-      Socket.setSocketImplFactory( myFactory );
-      ServerSocket.setSocketFactory( myFactory );
+      stack.install();
     } catch (Exception e) {
       System.out.println(e);
       System.exit(1);
@@ -64,10 +129,10 @@ class TCPStart {
 
 
     // start the demultiplexer
-    D.start();
+    stack.start();
 
     if (System.getProperty(LOSSRATERESOURCE)!=null) {
-      TCPWrapper.dropRandomPackets
+      wrapper.dropRandomPackets
 	(System.currentTimeMillis(),
 	 Double.parseDouble(System.getProperty(LOSSRATERESOURCE)));
     }        
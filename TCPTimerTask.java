@@ -1,11 +1,11 @@
 
 import java.util.TimerTask;
-import java.util.Timer;
 
 public class TCPTimerTask extends TimerTask {
 
   private BaseSocketImpl sock;
   private Object ref;
+  private volatile boolean cancelled;
 
   /**
    * register timer event for TCP statck
@@ -14,14 +14,24 @@ public class TCPTimerTask extends TimerTask {
    * @param sock socket implementation to call sock.handleTimer(ref)
    * @param ref generic object of information to pass back
    */
-  public TCPTimerTask(Timer tcpTimer, long delay, BaseSocketImpl sock, Object ref){
+  public TCPTimerTask(TCPClock.Timer tcpTimer, long delay, BaseSocketImpl sock, Object ref){
     this.sock = sock;
     this.ref = ref;
     tcpTimer.schedule(this, delay);
   }
 
+  /**
+   * cancel the task: it never runs after this, whichever timer it was
+   * given to (a Simulation's timer runs whatever task it still holds)
+   */
+  public boolean cancel(){
+    cancelled = true;
+    return super.cancel();
+  }
+
   public void run(){
-    sock.handleTimer(ref);
+    if (!cancelled)
+      sock.handleTimer(ref);
   }
 }
 
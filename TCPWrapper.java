@@ -1,5 +1,7 @@
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.*;
 
 
@@ -13,11 +15,13 @@ import java.util.*;
 // and there is a choice of random or selective packet
 // dropping.
 //
-// everything here is static.
+// there is one TCPWrapper per TCPStack, and everything here (the
+// rate limit, the dropping, the counters, the sender threads) belongs
+// to that stack alone.
 //
 // the port number MUST be initialized.
 //   use setUDPPortNumber(int port);
-//   (done by TCPStart)
+//   (done by TCPStack)
 //
 //everything else has
 // default values:
@@ -25,48 +29,99 @@ import java.util.*;
 //   (2) random packet dropping is disabled
 //   (3) selective packet dropping is disabled
 //
+// sending only queues the packet on its connection's flow; sender
+// threads transmit it (see SendScheduler).  packets sent without a
+// flow share one.  each packet (or the segment holding its data) is
+// stamped with the time it actually goes out, which may be well after
+// it was sent, behind the rate limit; TCP times its retransmissions
+// from that.
+//
 //---------------------------------------------------
 class TCPWrapper {
 
+    // a packet's sentTime while it waits to go out; any real time is
+    // after it.
+    static final long QUEUED = Long.MIN_VALUE;
+
     // the max number of packets allowed to be sent per second
-    static private int packetsPerSecond = 10;
+    private int packetsPerSecond = 10;
 
     // the Date() object for rate limiting the packets.
-    static long time = (new Date()).getTime();
-    static long temptime;
+    long time = (new Date()).getTime();
+    long temptime;
     
     // counter of how many packets have been sent this second, so far.
-    static int packetBurst = 0;
+    int packetBurst = 0;
+
+    // held by a sender thread while it waits out the rate limit, and
+    // while it opens sendChannel.
+    private final Object rateLock = new Object();
     
     // flag if we are to drop random packets (i.e. send() will not send
     // the packet - to simulate packet loss!)
-    static boolean randomPacketsDropped = false;
+    boolean randomPacketsDropped = false;
 
     // flag if we are to drop specific packets
-    static boolean selectedPacketsDropped = false;
+    boolean selectedPacketsDropped = false;
 
     // the number generator for psuedorandom numbers.
-    static Random numberGenerator=null;
+    Random numberGenerator=null;
 
     // the rate of random packets to be dropped
-    static double rateToDrop=0.0;
+    double rateToDrop=0.0;
     
     // the set of selected packets to be dropped
-    static Hashtable dropSet=null;
+    Hashtable dropSet=null;
     
     // counter for how many packets sent OR dropped (total of both).
     // so, counter will = 1 for the first packet sent.
-    static long packetCounter = 0;
+    long packetCounter = 0;
 
     // counter for how many packets have been dropped.
-    static long droppedCounter = 0;
+    long droppedCounter = 0;
     
     // for UDP sending
-    static int portForUDP = -1;
+    int portForUDP = -1;
+
+    // one unbound channel for all sending.  a channel (unlike a
+    // DatagramSocket) sends a direct ByteBuffer without copying it onto
+    // the heap first, so segments go out straight from the pool.
+    DatagramChannel sendChannel = null;
+
+    // how many consecutive UDP ports, from portForUDP on, the other
+    // side receives on.
+    int receivePortCount = 1;
+
+    // if set, every segment sent or received is written to a pcap
+    // file (see setCapture()).
+    PcapWriter capture = null;
+
+    // if set, packets go to this simulated network instead of UDP,
+    // and there is no rate limit (see setSimulation()).
+    Simulation simulation = null;
+
+    // the queues and threads packets are sent through, started with
+    // the first packet.
+    private SendScheduler scheduler = null;
+    private int senderThreads = 1;
+    private int quantum = SendScheduler.QUANTUM;
+
+    // the flow of packets that aren't sent for a connection, like the
+    // SYN cookie handshake and TIME_WAIT's ACKs.
+    private final SendScheduler.Flow sharedFlow =
+        new SendScheduler.Flow();
+
+    // the stack's clock, for the time packets go out.
+    private final TCPClock clock;
+
+
+    TCPWrapper( TCPClock clock ) {
+        this.clock = clock;
+    }
 
     
     // sets the packet rate, of course
-    static public void setPacketRate( int pps ) {
+    public void setPacketRate( int pps ) {
         if (pps > 50) {
             System.out.println("packet rate should not be set higher "+
                                "than 50 packets per second.");
@@ -76,8 +131,16 @@ class TCPWrapper {
     }
 
 
+    // turns the rate limit off altogether.  only for load tests with
+    // both ends on one machine, where the limit would be all that is
+    // measured.
+    public void disableRateLimit() {
+        packetsPerSecond = 0;
+    }
+
+
     // seeds and enables the random packet dropping
-    static public void dropRandomPackets( long seed, double rate ) {
+    public void dropRandomPackets( long seed, double rate ) {
         // do random packet stuff here...
         if (rate>1.0) {
             System.out.println("for dropping random packets," +
@@ -93,7 +156,7 @@ class TCPWrapper {
     
     // adds a specific "Nth" packet to the list of packets that will be
     // dropped.  call this function for EACH packet you want to drop
-    static public void dropSelectedPacket( int nthPacket ) {
+    public void dropSelectedPacket( int nthPacket ) {
         // set up a static array or something that will drop the nth
         // packet - including ACKS and ANYTHING sent through
         // TCPWrapper.send(...)
@@ -107,76 +170,299 @@ class TCPWrapper {
 
     // MUST be called before sending packets
     // or else you'll just crash =)
-    static public void setUDPPortNumber( int port ) {
+    public void setUDPPortNumber( int port ) {
         portForUDP = port;
     }
     
 
 
+    // starts capturing every segment sent (here) and received (by the
+    // Demultiplexer) into the writer's pcap file.  the writer is
+    // started if it hasn't been.
+    public void setCapture( PcapWriter writer ) {
+        if (!writer.isAlive())
+            writer.start();
+        capture = writer;
+    }
+
+    public PcapWriter getCapture() {
+        return capture;
+    }
+
+
+
+    // sends every packet through a simulated network, on its virtual
+    // clock, instead of over UDP.  dropping still applies as set here;
+    // the rate limit does not.
+    public void setSimulation( Simulation sim ) {
+        simulation = sim;
+    }
+
+
+
+    // sets how many threads transmit queued packets.  MUST be called
+    // before the first packet is sent.
+    public void setSenderThreads( int count ) {
+        if (count < 1) {
+            System.out.println("there must be at least one sender thread.");
+            System.exit(1);
+        }
+        senderThreads = count;
+    }
+
+    // the largest segment a connection of this stack may send: every
+    // flow gets that many bytes, and a header, per turn of the senders.
+    // called by Demultiplexer.setMaxSegmentSize().
+    synchronized public void setMaxSegmentSize( int mss ) {
+        quantum = mss + 20;
+        if (scheduler!=null)
+            scheduler.setQuantum(quantum);
+    }
+
+    public long getOverflowCount() {
+        return (scheduler==null ? 0 : scheduler.getOverflowCount());
+    }
+
+
+    synchronized private SendScheduler getScheduler() {
+        if (scheduler==null) {
+            scheduler = new SendScheduler(this, senderThreads);
+            scheduler.setQuantum(quantum);
+        }
+        return scheduler;
+    }
+
+
+    // spreads connections over several receive ports on the other
+    // side.  MUST match the count the other side's Demultiplexer
+    // receives on.
+    public void setReceivePortCount( int count ) {
+        if (count < 1 || portForUDP+count-1 > 65535) {
+            System.out.println("receive port count must be at least 1, "+
+                               "and the ports must fit below 65536.");
+            System.exit(1);
+        }
+        receivePortCount = count;
+    }
+
+
+    // the UDP port to send a packet to.  the hash only depends on the
+    // two TCP ports, and is the same whichever side sends, so every
+    // packet of a connection, in both directions, goes to one port.
+    int getUDPPortFor( TCPPacket packet ) {
+        if (receivePortCount == 1)
+            return portForUDP;
+        int h = (packet.sourcePort ^ packet.destPort) * 0x9e3779b9;
+        return portForUDP + ((h >>> 16) % receivePortCount);
+    }
+
+
+    // sends a packet over the network, wrapped in a UDP datagram, on
+    // the shared flow.
+    public void send(TCPPacket packet, InetAddress remoteHost) {
+        send(packet, remoteHost, sharedFlow);
+    }
+
+
     // sends a packet over the network, wrapped in a UDP datagram:
     //
-    //   if we try to send a packet faster than the rate limit, this
-    //   function will BLOCK (i.e. sit and wait) until it can send the
-    //   packet.
-    static synchronized public void send(TCPPacket packet, InetAddress remoteHost) {
+    //   the packet is queued on the flow, and sent after the packets
+    //   already queued there.  this never blocks: the rate limit
+    //   holds up the sender threads instead.
+    public void send(TCPPacket packet, InetAddress remoteHost,
+                            SendScheduler.Flow flow) {
+        InetSocketAddress to =
+            new InetSocketAddress(remoteHost, getUDPPortFor(packet));
+        SegmentBuffer seg = packet.getSegment();
 
-        // the first time this happens, it increments from 0 to 1
-        // which is the desired condition.
-        packetCounter++;
+        // a simulation runs on one thread, and everything goes out
+        // right away, as it happens
+        if (simulation!=null) {
+            ByteBuffer toSend;
+            if (seg!=null) {
+                // header goes in front of the data, already in place
+                packet.writeHeader(seg.buffer());
+                toSend = seg.wire();
+            }
+            else
+                toSend = ByteBuffer.wrap(packet.getBufferPacket());
+            transmit(packet, toSend, to);
+        }
+        else if (seg!=null) {
+            seg.sentTime = QUEUED;
+            getScheduler().sendSegment(flow, packet, seg, to);
+        }
+        else {
+            packet.sentTime = QUEUED;
+            getScheduler().send(flow, packet, to);
+        }
+    }
 
-        
-        // CHECK PACKET DROPPING STUFF
-        if (randomPacketsDropped){
-            if (numberGenerator.nextDouble() < rateToDrop) {
-                droppedCounter++;
-                System.out.println("packet # " +packetCounter+
-                                   " randomly dropped.");
-                return;
+
+    // sends a run of data segments of one connection, e.g. a whole
+    // window's worth, for the price of one call.
+    //
+    // the template is a packet with the header every segment shares
+    // (ports, flags, ack number, window).  each segment goes out with
+    // that header and its own seqNum (seg.seq).  the segments must all
+    // have their 20 byte header area free, as for attachSegment().
+    //
+    // dropping and rate limiting apply to each segment, exactly as if
+    // it went through send().  in a simulation, the header is built
+    // once and copied in front of each segment's data, and the
+    // template is left with the last segment attached; otherwise each
+    // segment is queued on the flow with a header of its own, written
+    // when it goes out.
+    public void sendSegments(TCPPacket template,
+                                    SegmentBuffer[] segs, int count,
+                                    InetAddress remoteHost,
+                                    SendScheduler.Flow flow) {
+        InetSocketAddress to =
+            new InetSocketAddress(remoteHost, getUDPPortFor(template));
+
+        if (simulation==null) {
+            SendScheduler s = getScheduler();
+            for (int i=0; i<count; i++) {
+                TCPPacket p = new TCPPacket(template.sourcePort,
+                                            template.destPort, segs[i].seq,
+                                            template.ackNum,
+                                            template.ackFlag,
+                                            template.synFlag,
+                                            template.finFlag,
+                                            template.windowSize, null);
+                p.attachSegment(segs[i]);
+                segs[i].sentTime = QUEUED;
+                s.sendSegment(flow, p, segs[i], to);
             }
+            return;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(20);
+        template.writeHeader(header);
+
+        for (int i=0; i<count; i++) {
+            SegmentBuffer seg = segs[i];
+            ByteBuffer b = seg.buffer().duplicate();
+            header.rewind();
+            b.put(header);
+            b.putInt(4, seg.seq);
+
+            template.seqNum = seg.seq;
+            template.attachSegment(seg);
+            transmit(template, seg.wire(), to);
+        }
+    }
+
+
+    // the part of sending common to every packet: capture, dropping,
+    // and the datagram itself.  called by the sender threads, or
+    // straight from send() in a simulation.
+    void transmit(TCPPacket packet, ByteBuffer toSend,
+                         InetSocketAddress to) {
+        long number;
+        String dropped = null;
+
+        sent(packet);
+
+        // the counter and the dropping decisions are shared by the
+        // sender threads
+        synchronized (this) {
+            // the first time this happens, it increments from 0 to 1
+            // which is the desired condition.
+            number = ++packetCounter;
+
+            // CHECK PACKET DROPPING STUFF
+            if (randomPacketsDropped &&
+                numberGenerator.nextDouble() < rateToDrop)
+                dropped = "randomly";
+            else if ( (selectedPacketsDropped)&&
+                      (dropSet.containsKey( new Long(number) )))
+                dropped = "selectively";
+            if (dropped!=null)
+                droppedCounter++;
         }
-        if ( (selectedPacketsDropped)&&
-                  (dropSet.containsKey( new Long(packetCounter) ))) {
-            droppedCounter++;
-            System.out.println("packet # " +packetCounter+
-                               " selectively dropped.");
 
+        // captured as sent, whether or not it is "lost"
+        if (capture!=null)
+            capture.captureSent(to.getAddress(), toSend);
+
+        if (dropped!=null) {
+            System.out.println("packet # " +number+" "+dropped+" dropped.");
             return;
         }
                 
 
+        if (simulation!=null)
+            simulation.send(toSend, to);
+        else
+            sendDatagram(toSend, to);
+
+
+        // want this debug line?
+        System.out.println("\n<<< packet # "+number+" to "+to.getAddress()+"...");
+        System.out.println("<<< "+packet+"\n");
+    }
+
+
+    // stamps a packet, or the segment holding its data, with the time
+    // it goes out.  one lost on the way, here or in its full flow,
+    // counts as sent all the same: noticing is up to TCP.
+    void sent(TCPPacket packet) {
+        long now = clock.nanoTime();
+        SegmentBuffer seg = packet.getSegment();
+        if (seg!=null)
+            seg.sentTime = now;
+        else
+            packet.sentTime = now;
+    }
+
+
+    // sends one datagram over UDP, within the rate limit.
+    private void sendDatagram(ByteBuffer toSend, InetSocketAddress to) {
+
         // CHECK RATE LIMIT
-        if (packetBurst>=packetsPerSecond) {
-            temptime = (new Date()).getTime();
-
-            // prevents us from proceeding till at least a second has
-            // passed since our last burst of packets.
-            while( temptime< time+1000)
-	      temptime = (new Date()).getTime();
-            time = temptime;
-            packetBurst=0;
+        synchronized (rateLock) {
+            if (packetsPerSecond>0 && packetBurst>=packetsPerSecond) {
+                temptime = (new Date()).getTime();
+
+                // prevents us from proceeding till at least a second
+                // has passed since our last burst of packets.
+                while( temptime< time+1000)
+                    temptime = (new Date()).getTime();
+                time = temptime;
+                packetBurst=0;
+            }
+            packetBurst++;
+
+            try {
+                if (sendChannel==null)
+                    sendChannel = DatagramChannel.open();
+            }
+            catch(Exception e) {
+                System.out.println(e);
+                System.exit(1);
+            }
         }
-        packetBurst++;
 
         
         try {
-            byte toSend[] = packet.getBufferPacket();
-            DatagramPacket p = new DatagramPacket(toSend,toSend.length,
-                                                  remoteHost,portForUDP);
-            DatagramSocket sock = new DatagramSocket();
-            sock.send(p);
+            sendChannel.send(toSend, to);
         }
         catch(Exception e) {
             System.out.println(e);
             System.exit(1);
         }
-
-
-        // want this debug line?
-        System.out.println("\n<<< packet # "+packetCounter+" to "+remoteHost+"...");
-        System.out.println("<<< "+packet+"\n");
     }
 
     
+    // unwraps the TCP packet from a datagram received into a pooled
+    // segment, leaving the data in the segment.
+    static public TCPPacket unwrap(SegmentBuffer seg, int length,
+                                   InetAddress sender) {
+        return( new TCPPacket(seg, length, sender) );
+    }
+
+
     // unwraps the TCP packet from the UDP wrapper. this function does
     // NOT receive UDP packets from the network. it is invoked AFTER
     // receiving the datagram.
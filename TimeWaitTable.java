@@ -0,0 +1,215 @@
+import java.net.Inet4Address;
+import java.net.InetAddress;
+
+//---------------------------------------------------
+//
+// class TimeWaitTable
+//
+// holds connections in TIME_WAIT once their StudentSocketImpl has been
+// released.  all that is kept per connection is the 4-tuple (the local
+// address is always this host), the sequence numbers of the last ACK we
+// sent and the time the entry expires, in parallel primitive arrays.
+//
+// the table is open addressed with linear probing.  expired entries
+// are not removed by a timer: lookups treat them as absent, and they
+// are swept out whenever the table would otherwise have to grow.
+//
+// only IPv4 remote addresses fit in an entry; add() refuses anything
+// else and the caller keeps the full socket in that case.
+//
+//---------------------------------------------------
+class TimeWaitTable {
+
+	private static final int INITIAL_CAPACITY = 64; // must be a power of 2
+
+	private int[] addrs; // remote IPv4 address
+	private int[] ports; // localPort << 16 | remotePort
+	private int[] seqs; // seq of the last ACK we sent
+	private int[] acks; // ackNum of the last ACK we sent (the peer's next seq)
+	private long[] expiry; // 0 marks an empty slot
+	private int size;
+
+	private final TCPWrapper wrapper; //Sends the ACKs the table answers with
+	private final TCPClock clock;
+
+	TimeWaitTable(TCPWrapper wrapper, TCPClock clock) {
+		this.wrapper = wrapper;
+		this.clock = clock;
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Adds a connection entering TIME_WAIT.
+	 *
+	 * @param remote address of the other side
+	 * @param localPort our port
+	 * @param remotePort port of the other side
+	 * @param seq sequence number of the last ACK sent
+	 * @param ack acknowledgement number of the last ACK sent
+	 * @param lifetime how long to stay in TIME_WAIT, in milliseconds
+	 * @return false if the address can not be held in the table
+	 */
+	public synchronized boolean add(InetAddress remote, int localPort, int remotePort, int seq, int ack,
+			long lifetime) {
+		if (!(remote instanceof Inet4Address))
+			return false;
+
+		long now = clock.currentTimeMillis();
+		if ((size + 1) * 2 > addrs.length)
+			rehash(now);
+
+		int addr = toInt(remote);
+		int portPair = (localPort << 16) | (remotePort & 0xffff);
+		int i = slot(addr, portPair);
+		if (expiry[i] == 0)
+			size++;
+		addrs[i] = addr;
+		ports[i] = portPair;
+		seqs[i] = seq;
+		acks[i] = ack;
+		expiry[i] = now + lifetime;
+		return true;
+	}
+
+	/**
+	 * Handles a packet that matched no live connection. A FIN for a connection
+	 * in TIME_WAIT is acknowledged again, and anything else for it is absorbed.
+	 * A SYN that is safely beyond the old connection's sequence space ends
+	 * TIME_WAIT early so that the 4-tuple can be reused.
+	 *
+	 * @param p the packet received
+	 * @return true if the packet was consumed by a TIME_WAIT entry
+	 */
+	public synchronized boolean receivePacket(TCPPacket p) {
+		if (size == 0 || !(p.sourceAddr instanceof Inet4Address))
+			return false;
+
+		// remember, when receiving, destPort is the localPort.
+		int i = slot(toInt(p.sourceAddr), (p.destPort << 16) | (p.sourcePort & 0xffff));
+		if (expiry[i] <= clock.currentTimeMillis())
+			return false;
+
+		if (p.synFlag && !p.ackFlag && p.seqNum - acks[i] > 0) {
+			remove(i);
+			return false;
+		}
+
+		if (p.finFlag || p.synFlag)
+			wrapper.send(new TCPPacket(p.destPort, p.sourcePort, seqs[i], acks[i], true, false, false, 5, null),
+					p.sourceAddr);
+		return true;
+	}
+
+	/**
+	 * @return the number of entries, including any expired ones not yet swept
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of entries still in TIME_WAIT now. Scans the whole
+	 *         table.
+	 */
+	public synchronized int liveCount() {
+		long now = clock.currentTimeMillis();
+		int live = 0;
+		for (int i = 0; i < expiry.length; i++)
+			if (expiry[i] > now)
+				live++;
+		return live;
+	}
+
+	/**
+	 * Finds the slot holding the entry for the key, live or expired.
+	 *
+	 * @return that slot, or the empty slot where the key would be inserted
+	 */
+	private int slot(int addr, int portPair) {
+		int mask = addrs.length - 1;
+		int i = hash(addr, portPair) & mask;
+		while (expiry[i] != 0 && (addrs[i] != addr || ports[i] != portPair))
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	/**
+	 * Empties a slot, shifting later entries of the same probe run back so that
+	 * no lookup stops early at the hole.
+	 */
+	private void remove(int hole) {
+		int mask = addrs.length - 1;
+		int i = hole;
+		expiry[hole] = 0;
+		size--;
+		while (true) {
+			i = (i + 1) & mask;
+			if (expiry[i] == 0)
+				return;
+			int home = hash(addrs[i], ports[i]) & mask;
+			//Move the entry only if the hole lies between its home slot and where it sits now
+			if (((i - home) & mask) >= ((i - hole) & mask)) {
+				addrs[hole] = addrs[i];
+				ports[hole] = ports[i];
+				seqs[hole] = seqs[i];
+				acks[hole] = acks[i];
+				expiry[hole] = expiry[i];
+				expiry[i] = 0;
+				hole = i;
+			}
+		}
+	}
+
+	/**
+	 * Drops expired entries, doubling the capacity only if the live ones still
+	 * fill half the table.
+	 */
+	private void rehash(long now) {
+		int[] oldAddrs = addrs, oldPorts = ports, oldSeqs = seqs, oldAcks = acks;
+		long[] oldExpiry = expiry;
+
+		int live = 0;
+		for (int i = 0; i < oldExpiry.length; i++)
+			if (oldExpiry[i] > now)
+				live++;
+
+		int capacity = oldAddrs.length;
+		while ((live + 1) * 2 > capacity)
+			capacity *= 2;
+		allocate(capacity);
+
+		for (int i = 0; i < oldExpiry.length; i++) {
+			if (oldExpiry[i] <= now)
+				continue;
+			int j = slot(oldAddrs[i], oldPorts[i]);
+			addrs[j] = oldAddrs[i];
+			ports[j] = oldPorts[i];
+			seqs[j] = oldSeqs[i];
+			acks[j] = oldAcks[i];
+			expiry[j] = oldExpiry[i];
+			size++;
+		}
+	}
+
+	private void allocate(int capacity) {
+		addrs = new int[capacity];
+		ports = new int[capacity];
+		seqs = new int[capacity];
+		acks = new int[capacity];
+		expiry = new long[capacity];
+		size = 0;
+	}
+
+	private static int toInt(InetAddress addr) {
+		byte[] b = addr.getAddress();
+		return ((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16) | ((b[2] & 0xff) << 8) | (b[3] & 0xff);
+	}
+
+	private static int hash(int addr, int portPair) {
+		int h = addr * 0x9e3779b9 ^ portPair;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+}
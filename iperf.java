@@ -0,0 +1,251 @@
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+//---------------------------------------------------
+//
+// class iperf
+//
+// a bulk throughput test, in the style of iperf, on top of TCPStart.
+//
+// server: java -DUDPPORT=<n> iperf -s <port>
+// client: java -DUDPPORT=<n> iperf -c <host> <port> [options]
+//
+//   -P <streams>   connections to send on at once (default 1)
+//   -n <bytes>     total to send, split between the streams
+//   -t <seconds>   longest time to send for (default 10)
+//   -l <rate>      drop this fraction of the packets sent
+//   -r <pps>       TCPWrapper packet rate limit (default 50, the most)
+//   -C <cc>        congestion control: none (the default) or bbr
+//   -v             keep the packet trace on the console
+//
+// both ends use UDPPORT, so on one machine run the server in the same
+// process: give -s <port> as well as -c.
+//
+// the server reports what each connection received.  the client
+// reports goodput (bytes sent over the time until close() returns,
+// when the other side has acked everything), retransmitted segments,
+// round trip times and the process's CPU time per byte sent.
+//
+//---------------------------------------------------
+public class iperf {
+
+	public static void main(String[] argv) throws Exception {
+		String host = null;
+		int clientPort = -1, serverPort = -1, streams = 1, rate = 50;
+		long bytes = Long.MAX_VALUE, seconds = 10;
+		double loss = 0;
+		boolean verbose = false;
+		StudentSocketImpl.CongestionControl cc = null;
+
+		try {
+			for (int i = 0; i < argv.length; i++) {
+				switch (argv[i]) {
+				case "-s":
+					serverPort = Integer.parseInt(argv[++i]);
+					break;
+				case "-c":
+					host = argv[++i];
+					clientPort = Integer.parseInt(argv[++i]);
+					break;
+				case "-P":
+					streams = Integer.parseInt(argv[++i]);
+					break;
+				case "-n":
+					bytes = Long.parseLong(argv[++i]);
+					break;
+				case "-t":
+					seconds = Long.parseLong(argv[++i]);
+					break;
+				case "-l":
+					loss = Double.parseDouble(argv[++i]);
+					break;
+				case "-r":
+					rate = Integer.parseInt(argv[++i]);
+					break;
+				case "-C":
+					cc = StudentSocketImpl.CongestionControl.valueOf(argv[++i].toUpperCase());
+					break;
+				case "-v":
+					verbose = true;
+					break;
+				default:
+					throw new IllegalArgumentException(argv[i]);
+				}
+			}
+			if (serverPort < 0 && host == null)
+				throw new IllegalArgumentException();
+		} catch (RuntimeException e) {
+			System.err.println("usage: iperf -s <port>");
+			System.err.println("       iperf -c <host> <port> [-P streams] [-n bytes] [-t seconds] [-l lossRate] [-r pps] [-C cc] [-v]");
+			System.exit(1);
+		}
+
+		PrintStream console = System.out;
+		if (!verbose)
+			System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+		TCPStart.start();
+		TCPStart.getStack().getWrapper().setPacketRate(rate);
+		if (cc != null)
+			TCPStart.getDemultiplexer().setCongestionControl(cc);
+		if (loss > 0)
+			TCPStart.getStack().getWrapper().dropRandomPackets(System.currentTimeMillis(), loss);
+
+		if (serverPort >= 0)
+			startServer(serverPort, console);
+		if (host != null) {
+			runClient(InetAddress.getByName(host), clientPort, streams, bytes, seconds * 1000, console);
+			System.exit(0);
+		}
+	}
+
+	/**
+	 * Accepts connections forever, each read by its own thread.
+	 */
+	private static void startServer(int port, final PrintStream console) throws Exception {
+		final ServerSocket ss = new ServerSocket(port);
+		console.println("server listening on " + port);
+
+		Thread acceptor = new Thread() {
+			public void run() {
+				try {
+					for (int n = 1;; n++) {
+						final Socket s = ss.accept();
+						final int id = n;
+						new Thread() {
+							public void run() {
+								serve(id, s, console);
+							}
+						}.start();
+					}
+				} catch (Exception e) {
+					console.println("accept failed: " + e);
+				}
+			}
+		};
+		acceptor.start();
+	}
+
+	private static void serve(int id, Socket s, PrintStream console) {
+		try {
+			InputStream in = s.getInputStream();
+			byte[] buf = new byte[64 * 1024];
+			long total = 0, first = 0;
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				if (first == 0)
+					first = System.nanoTime();
+				total += n;
+			}
+			double secs = first == 0 ? 0 : (System.nanoTime() - first) / 1e9;
+			s.close();
+			console.println(String.format("[server %d] received %d bytes in %.2f s: %s", id, total, secs,
+					rate(total, secs)));
+		} catch (Exception e) {
+			console.println("[server " + id + "] " + e);
+		}
+	}
+
+	/**
+	 * One client connection sending.
+	 */
+	private static class Stream extends Thread {
+		final int id;
+		final InetAddress host;
+		final int port;
+		final long bytes;
+		final long deadline;
+		long sent;
+		double secs;
+		StudentSocketImpl impl;
+		Exception failure;
+
+		Stream(int id, InetAddress host, int port, long bytes, long deadline) {
+			this.id = id;
+			this.host = host;
+			this.port = port;
+			this.bytes = bytes;
+			this.deadline = deadline;
+		}
+
+		public void run() {
+			try {
+				Socket s = new Socket(host, port);
+				impl = TCPStart.getDemultiplexer().getConnection(s.getInetAddress(), s.getLocalPort(), s.getPort());
+
+				long start = System.nanoTime();
+				OutputStream out = s.getOutputStream();
+				byte[] buf = new byte[8 * 1024];
+				while (sent < bytes && System.currentTimeMillis() < deadline) {
+					int n = (int) Math.min(buf.length, bytes - sent);
+					out.write(buf, 0, n);
+					sent += n;
+				}
+				s.close(); //Returns once everything is acked and the connection is closed
+				secs = (System.nanoTime() - start) / 1e9;
+			} catch (Exception e) {
+				failure = e;
+			}
+		}
+	}
+
+	private static void runClient(InetAddress host, int port, int streams, long bytes, long millis,
+			PrintStream console) throws Exception {
+		com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory
+				.getOperatingSystemMXBean();
+		long cpuStart = os.getProcessCpuTime();
+		long start = System.nanoTime();
+		long deadline = System.currentTimeMillis() + millis;
+
+		Stream[] all = new Stream[streams];
+		for (int i = 0; i < streams; i++) {
+			long share = bytes == Long.MAX_VALUE ? bytes : bytes / streams + (i < bytes % streams ? 1 : 0);
+			all[i] = new Stream(i + 1, host, port, share, deadline);
+			all[i].start();
+		}
+
+		long total = 0, segments = 0, retransmits = 0;
+		LatencyHistogram rtt = new LatencyHistogram();
+		for (Stream st : all) {
+			st.join();
+			if (st.failure != null) {
+				console.println("[" + st.id + "] failed: " + st.failure);
+				continue;
+			}
+			console.println(String.format("[%d] sent %d bytes in %.2f s: %s", st.id, st.sent, st.secs,
+					rate(st.sent, st.secs)));
+			total += st.sent;
+			if (st.impl != null) {
+				segments += st.impl.getSegmentsSent();
+				retransmits += st.impl.getRetransmitCount();
+				rtt.add(st.impl.getRttHistogram());
+			}
+		}
+
+		double secs = (System.nanoTime() - start) / 1e9;
+		long cpu = os.getProcessCpuTime() - cpuStart;
+		console.println(String.format("[sum] %d bytes in %.2f s: %s", total, secs, rate(total, secs)));
+		console.println(String.format("retransmits: %d of %d segments (%.1f%%)", retransmits, segments,
+				segments == 0 ? 0 : 100.0 * retransmits / segments));
+		console.println("rtt ms: " + millisSummary(rtt));
+		console.println(String.format("cpu: %.1f ns/byte (whole process)", total == 0 ? 0 : (double) cpu / total));
+	}
+
+	private static String rate(long bytes, double secs) {
+		if (secs <= 0)
+			return "-";
+		return String.format("%.1f KB/s (%.1f kbit/s)", bytes / secs / 1024, bytes * 8 / secs / 1000);
+	}
+
+	private static String millisSummary(LatencyHistogram h) {
+		if (h.getCount() == 0)
+			return "no samples";
+		return String.format("p50=%.1f p90=%.1f p99=%.1f max=%.1f (%d samples)", h.getPercentile(50) / 1000.0,
+				h.getPercentile(90) / 1000.0, h.getPercentile(99) / 1000.0, h.getMax() / 1000.0, h.getCount());
+	}
+}
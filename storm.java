@@ -0,0 +1,217 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//---------------------------------------------------
+//
+// class storm
+//
+// a connection storm against a server in the same process: opens
+// thousands of connections at once, holds them, then closes them all,
+// to see how fast the Demultiplexer and StudentSocketImpl set up and
+// tear down connections and what each one costs.
+//
+// java -DUDPPORT=<n> [-DSYNCOOKIES=true] storm <port> [options]
+//
+//   -n <connections>  connections per round (default 1000)
+//   -c <in flight>    most handshakes in progress at once (default all)
+//   -r <rounds>       times to repeat the storm (default 1)
+//   -t <seconds>      longest wait for each phase (default 60)
+//   -v                keep the packet trace on the console
+//
+// every round reports handshakes per second and a handshake latency
+// histogram, the heap used per established connection (both of its
+// ends live in this process), closes per second and the TIME_WAIT
+// population afterwards.
+//
+// the packet rate limit is turned off: at 50 packets per second it
+// would be all this measures.  without SYN cookies, SYNs that arrive
+// while no socket is in LISTEN are dropped and retried after the
+// retransmission timeout, which shows up in the latency histogram.
+// with them, a lost handshake ACK leaves the client established and
+// the server unaware of it; such half-open connections are counted,
+// and not waited for.
+//
+//---------------------------------------------------
+public class storm {
+
+	//How long accepts may trail the client's handshakes before the rest count as half-open
+	private static final long ACCEPT_GRACE = 2000;
+
+	public static void main(String[] argv) throws Exception {
+		int port = -1, connections = 1000, inFlight = -1, rounds = 1;
+		long timeout = 60;
+		boolean verbose = false;
+
+		try {
+			port = Integer.parseInt(argv[0]);
+			for (int i = 1; i < argv.length; i++) {
+				switch (argv[i]) {
+				case "-n":
+					connections = Integer.parseInt(argv[++i]);
+					break;
+				case "-c":
+					inFlight = Integer.parseInt(argv[++i]);
+					break;
+				case "-r":
+					rounds = Integer.parseInt(argv[++i]);
+					break;
+				case "-t":
+					timeout = Long.parseLong(argv[++i]);
+					break;
+				case "-v":
+					verbose = true;
+					break;
+				default:
+					throw new IllegalArgumentException(argv[i]);
+				}
+			}
+		} catch (RuntimeException e) {
+			System.err.println("usage: storm <port> [-n connections] [-c inFlight] [-r rounds] [-t seconds] [-v]");
+			System.exit(1);
+		}
+		if (inFlight <= 0)
+			inFlight = connections;
+
+		//Unmatched packets are expected here, and are reported on System.err
+		PrintStream console = System.out;
+		if (!verbose) {
+			System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+			System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+		}
+
+		TCPStart.start();
+		TCPStart.getStack().getWrapper().disableRateLimit();
+
+		for (int r = 1; r <= rounds; r++) {
+			console.println("round " + r + ": " + connections + " connections, " + inFlight + " in flight");
+			TCPServerChannel server = TCPServerChannel.open(port, connections);
+			round(server, port, connections, inFlight, timeout * 1000, console);
+			server.close(); //Drops any accepts still waiting, so that the next round starts clean
+		}
+		System.exit(0);
+	}
+
+	private static void round(TCPServerChannel server, int port, int connections, int inFlight, long timeout,
+			PrintStream console) throws Exception {
+		Demultiplexer D = TCPStart.getDemultiplexer();
+		long heapBefore = usedHeap();
+
+		//Open: every accept is asked for up front, and connects go out as fast as the in-flight limit allows
+		final ConcurrentLinkedQueue<TCPChannel> accepted = new ConcurrentLinkedQueue<TCPChannel>();
+		for (int i = 0; i < connections; i++)
+			server.accept().thenAccept(accepted::add);
+
+		final LatencyHistogram handshakes = new LatencyHistogram();
+		final ConcurrentLinkedQueue<TCPChannel> clients = new ConcurrentLinkedQueue<TCPChannel>();
+		final AtomicInteger failed = new AtomicInteger();
+		final Semaphore slots = new Semaphore(inFlight);
+		InetAddress local = InetAddress.getLoopbackAddress();
+
+		long start = System.nanoTime();
+		long deadline = System.currentTimeMillis() + timeout;
+		int started = 0;
+		for (; started < connections; started++) {
+			if (!slots.tryAcquire(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS))
+				break;
+			final long t0 = System.nanoTime();
+			CompletableFuture<TCPChannel> f = TCPChannel.connect(local, port);
+			f.whenComplete((c, e) -> {
+				if (e != null)
+					failed.incrementAndGet();
+				else {
+					handshakes.record((System.nanoTime() - t0) / 1000);
+					clients.add(c);
+				}
+				slots.release();
+			});
+		}
+		while (clients.size() + failed.get() < started && System.currentTimeMillis() < deadline)
+			Thread.sleep(1);
+		double openSecs = (System.nanoTime() - start) / 1e9;
+
+		long grace = Math.min(deadline, System.currentTimeMillis() + ACCEPT_GRACE);
+		while (accepted.size() < clients.size() && System.currentTimeMillis() < grace)
+			Thread.sleep(1);
+
+		int open = clients.size();
+		int halfOpen = Math.max(0, open - accepted.size());
+		console.println(String.format("  open:  %d established, %d failed, %d not finished in %.2f s: %.0f handshakes/s",
+				open, failed.get(), started - open - failed.get(), openSecs, open / openSecs));
+		console.println("  handshake ms: " + millis(handshakes));
+		console.println(String.format("  accepted: %d, half-open: %d", accepted.size(), halfOpen));
+
+		long heapOpen = usedHeap();
+		if (open > 0)
+			console.println(String.format("  heap: %d bytes per connection (both ends), %d KB in all",
+					(heapOpen - heapBefore) / open, (heapOpen - heapBefore) / 1024));
+
+		//Close: the clients close, and the server closes each connection when it reads the end of the stream.
+		//The clients of half-open connections never get their FIN acked, so they aren't waited for.
+		start = System.nanoTime();
+		deadline = System.currentTimeMillis() + timeout;
+		for (TCPChannel c : clients)
+			c.close();
+
+		List<TCPChannel> serving = new ArrayList<TCPChannel>(accepted);
+		ByteBuffer buf = ByteBuffer.allocate(1024);
+		while (!serving.isEmpty() && System.currentTimeMillis() < deadline) {
+			for (int i = serving.size() - 1; i >= 0; i--) {
+				buf.clear();
+				if (serving.get(i).read(buf) < 0) {
+					serving.get(i).close();
+					serving.remove(i);
+				}
+			}
+			Thread.sleep(1);
+		}
+
+		int closing;
+		do {
+			closing = 0;
+			for (TCPChannel c : clients)
+				if (c.getSocketImpl().getState() != StudentSocketImpl.State.CLOSED)
+					closing++;
+			for (TCPChannel c : accepted)
+				if (c.getSocketImpl().getState() != StudentSocketImpl.State.CLOSED)
+					closing++;
+			if (closing > halfOpen)
+				Thread.sleep(1);
+		} while (closing > halfOpen && System.currentTimeMillis() < deadline);
+		double closeSecs = (System.nanoTime() - start) / 1e9;
+
+		int closed = open + accepted.size() - closing;
+		console.println(String.format("  close: %d sockets closed, %d still closing in %.2f s: %.0f connections/s",
+				closed, closing, closeSecs, closed / 2 / closeSecs));
+		console.println("  TIME_WAIT: " + D.getTimeWaitCount() + " entries");
+		console.println(String.format("  segment pool: %d segments, %d free", SegmentPool.getDefault()
+				.getTotalCount(), SegmentPool.getDefault().getFreeCount()));
+	}
+
+	/**
+	 * @return bytes of heap in use, after asking for a collection
+	 */
+	private static long usedHeap() throws InterruptedException {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	private static String millis(LatencyHistogram h) {
+		if (h.getCount() == 0)
+			return "no samples";
+		return String.format("p50=%.1f p90=%.1f p99=%.1f max=%.1f", h.getPercentile(50) / 1000.0,
+				h.getPercentile(90) / 1000.0, h.getPercentile(99) / 1000.0, h.getMax() / 1000.0);
+	}
+}